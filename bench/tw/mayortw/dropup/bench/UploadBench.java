@@ -0,0 +1,116 @@
+package tw.mayortw.dropup.bench;
+/*
+ * Written by R26
+ */
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+import tw.mayortw.dropup.util.LimitedInputStream;
+import tw.mayortw.dropup.util.MultipartStreamEntity;
+
+/*
+ * Uploads through LimitedInputStream and an upload entity into a local
+ * HTTP server that throws the body away, and reports the throughput
+ *   ant bench -Dbench.class=UploadBench -Dbench.args="<MB> <rate> <entity>"
+ * MB: size of each upload, 256 by default
+ * rate: limit in bytes per second, -1 for no limit (default)
+ * entity: stream for MultipartStreamEntity (default),
+ *         builder for MultipartEntityBuilder like uploads used before
+ */
+public class UploadBench {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : -1;
+        boolean builder = args.length > 2 && args[2].equals("builder");
+
+        AtomicLong received = new AtomicLong();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", exchange -> {
+            byte[] buf = new byte[64 * 1024];
+            try(InputStream in = exchange.getRequestBody()) {
+                int len;
+                while((len = in.read(buf)) >= 0)
+                    received.addAndGet(len);
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/upload";
+        HttpClient client = HttpClientBuilder.create().build();
+        System.out.printf("%d MB, rate %s, %s entity%n", size >> 20, rate > 0 ? rate + " B/s" : "unlimited",
+                builder ? "builder" : "stream");
+
+        try {
+            for(int run = 0; run <= RUNS; run++) {
+                received.set(0);
+                LimitedInputStream in = new LimitedInputStream(new ZeroInputStream(size), rate);
+                HttpEntity entity = builder
+                    ? MultipartEntityBuilder.create()
+                        .addTextBody("metadata", "{}", ContentType.APPLICATION_JSON)
+                        .addBinaryBody("file", in, ContentType.APPLICATION_OCTET_STREAM, "bench")
+                        .build()
+                    : new MultipartStreamEntity("{}", in, size);
+                HttpPost post = new HttpPost(url);
+                post.setEntity(entity);
+
+                long start = System.nanoTime();
+                HttpResponse res = client.execute(post);
+                EntityUtils.consume(res.getEntity());
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                if(in.getTransferred() != size)
+                    throw new IOException("Sent " + in.getTransferred() + " of " + size + " bytes");
+                // First run warms up the JIT
+                System.out.printf("%s: %.3f s, %.1f MB/s, server got %d bytes%n", run == 0 ? "warmup" : "run " + run,
+                        seconds, size / seconds / 1024 / 1024, received.get());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // size zero bytes without holding them in memory
+    private static class ZeroInputStream extends InputStream {
+        private long left;
+
+        ZeroInputStream(long size) {
+            this.left = size;
+        }
+
+        @Override
+        public int read() {
+            if(left <= 0) return -1;
+            left--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(left <= 0) return -1;
+            int n = (int) Math.min(len, left);
+            Arrays.fill(b, off, off + n, (byte) 0);
+            left -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package tw.mayortw.dropup.bench;
+/*
+ * Written by R26
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+import tw.mayortw.dropup.util.FileUtil;
+import tw.mayortw.dropup.util.PathFilter;
+
+/*
+ * Zips and copies a folder of many small files, like the playerdata,
+ * stats and advancements of a big server
+ *   ant bench -Dbench.class=ZipBench -Dbench.args="<files> <level>"
+ * files: number of files, 100000 by default
+ * level: Deflater level, 0 by default so the walk is timed instead of compression
+ */
+public class ZipBench {
+
+    private static final int RUNS = 3;
+    private static final String[] FOLDERS = {"playerdata", "stats", "advancements"};
+    private static final int[] SIZES = {2500, 1200, 3000}; // about how big those files are
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int level = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+        Path world = Files.createTempDirectory("dropup-bench-");
+        try {
+            long bytes = generate(world, files);
+            System.out.printf("%d files, %.1f MB, level %d%n", files, bytes / 1024.0 / 1024, level);
+
+            // First run warms up the JIT
+            for(int run = 0; run <= RUNS; run++) {
+                String name = run == 0 ? "warmup" : "run " + run;
+
+                CountingSink sink = new CountingSink();
+                long start = System.nanoTime();
+                FileUtil.zipFiles(sink, world.toFile(), null, null, PathFilter.ALL, level);
+                double zipSeconds = (System.nanoTime() - start) / 1e9;
+
+                File copy = new File(world.toFile().getParentFile(), world.getFileName() + "-copy");
+                start = System.nanoTime();
+                FileUtil.copyDirectory(world.toFile(), copy);
+                double copySeconds = (System.nanoTime() - start) / 1e9;
+                FileUtil.deleteDirectory(copy);
+
+                System.out.printf("%s: zip %.2f s (%.1f MB), copy %.2f s%n", name, zipSeconds, sink.count / 1024.0 / 1024, copySeconds);
+            }
+        } finally {
+            FileUtil.deleteDirectory(world);
+        }
+    }
+
+    // Returns the total size
+    private static long generate(Path world, int files) throws IOException {
+        Random random = new Random(26);
+        long total = 0;
+        for(String folder : FOLDERS)
+            Files.createDirectories(world.resolve(folder));
+
+        for(int i = 0; i < files; i++) {
+            int kind = i % FOLDERS.length;
+            byte[] data = new byte[SIZES[kind] / 2 + random.nextInt(SIZES[kind])];
+            random.nextBytes(data);
+            String name = UUID.nameUUIDFromBytes(("bench" + i).getBytes()) + (kind == 0 ? ".dat" : ".json");
+            Files.write(world.resolve(FOLDERS[kind]).resolve(name), data);
+            total += data.length;
+        }
+        return total;
+    }
+
+    // Counts what's written and throws it away, so the disk only reads
+    private static class CountingSink extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
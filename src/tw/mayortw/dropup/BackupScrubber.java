@@ -0,0 +1,148 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.World;
+
+import tw.mayortw.dropup.util.*;
+
+/*
+ * Checks stored backups against the checksums saved when they were uploaded
+ * Runs in background at download speed, one backup at a time
+ */
+public class BackupScrubber {
+
+    private static final Metrics.Counter scrubbed = Metrics.counter("dropup_scrub_checked_total", "Backups checked by scrub");
+    private static final Metrics.Counter scrubFailures = Metrics.counter("dropup_scrub_failures_total", "Backups that failed scrub");
+
+    private Plugin plugin;
+    private StorageBackend storage;
+    private RetentionPolicy retention;
+    private ExecutorService io;
+    private AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean stopped = false;
+    private BukkitTask timer;
+
+    // retention can be null if there's no local tier
+    public BackupScrubber(Plugin plugin, StorageBackend storage, RetentionPolicy retention, ExecutorService io) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.retention = retention;
+        this.io = io;
+    }
+
+    // Scrub every scrub_interval hours, 0 to turn it off
+    public void start() {
+        long hours = plugin.getConfig().getLong("scrub_interval");
+        if(hours <= 0) return;
+
+        long ticks = hours * 60 * 60 * 20;
+        timer = Bukkit.getScheduler().runTaskTimer(plugin, () -> scrub(Bukkit.getWorlds()), ticks, ticks);
+    }
+
+    public void stop() {
+        stopped = true;
+        if(timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    // Returns false if a scrub is already running
+    public boolean scrub(Collection<? extends World> worlds) {
+        if(!running.compareAndSet(false, true)) return false;
+
+        // World info has to be read in main thread
+        List<String> paths = new ArrayList<>();
+        for(World world : worlds)
+            paths.add(plugin.getConfig().getString("drive_path") + "/" + world.getUID().toString());
+        int rate = plugin.getConfig().getInt("download_speed") * 1024; // kb to byte
+
+        io.execute(() -> {
+            int checked = 0;
+            int unchecked = 0;
+            List<String> failed = new ArrayList<>();
+
+            try {
+                List<StorageBackend> tiers = new ArrayList<>();
+                tiers.add(storage);
+                if(retention != null)
+                    tiers.add(retention.getLocalTier());
+
+                for(String path : paths) {
+                    for(StorageBackend tier : tiers) {
+                        for(String name : tier.listFileNames(path)) {
+                            if(stopped) return;
+                            if(!WorldUploader.isBackup(name)) continue;
+
+                            String file = path + "/" + name;
+                            try {
+                                Boolean ok = verify(tier, file, rate);
+                                if(ok == null) {
+                                    unchecked++;
+                                } else if(ok) {
+                                    checked++;
+                                } else {
+                                    failed.add(file);
+                                    plugin.getLogger().warning("Checksum mismatch: " + file);
+                                }
+                            } catch(StorageBackend.StorageException | IOException e) {
+                                failed.add(file);
+                                plugin.getLogger().warning("Cannot scrub " + file + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+            } catch(StorageBackend.StorageException e) {
+                plugin.getLogger().warning("Cannot get backup list: " + e.getMessage());
+            } finally {
+                running.set(false);
+            }
+
+            scrubbed.inc(checked);
+            scrubFailures.inc(failed.size());
+
+            String msg = String.format("[§e%s§r] §f備份檢查完成： §a%d §f個正常 §7%d 個沒有校驗碼%s",
+                    plugin.getName(), checked, unchecked,
+                    failed.isEmpty() ? "" : String.format(" §c%d 個損壞", failed.size()));
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                Bukkit.broadcast(msg, "dropup.list");
+                for(String file : failed)
+                    Bukkit.broadcast("§c    " + file, "dropup.list");
+            });
+        });
+
+        return true;
+    }
+
+    // Returns null if the backup has no checksum
+    private Boolean verify(StorageBackend tier, String path, int rate) throws StorageBackend.StorageException, IOException {
+        StorageBackend.FileInfo info = tier.getFileInfo(path);
+        String checksum = info != null ? info.properties.get(FileUtil.CHECKSUM_PROPERTY) : null;
+        if(checksum == null) return null;
+
+        MessageDigest digest = FileUtil.newDigest();
+        try(InputStream in = new LimitedInputStream(new DigestInputStream(tier.download(path), digest), rate)) {
+            FileUtil.drain(in);
+        }
+        return checksum.equalsIgnoreCase(FileUtil.toHex(digest.digest()));
+    }
+}
@@ -6,7 +6,11 @@ package tw.mayortw.dropup;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
+import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.Container;
 import org.bukkit.block.data.BlockData;
@@ -24,127 +28,187 @@ import org.bukkit.event.player.PlayerBucketFillEvent;
 import org.bukkit.event.player.PlayerBucketEmptyEvent;
 import org.bukkit.event.player.PlayerBucketEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
-import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.World;
 
+import tw.mayortw.dropup.util.Metrics;
+import tw.mayortw.dropup.util.Profiler;
+
 public class BlockLogger implements Listener {
 
+    private static final Metrics.Histogram eventTime = Profiler.section("block_event", "Time spent in BlockLogger event handlers");
+    private static final Metrics.Histogram taskTime = Profiler.section("block_task", "Time spent checking blocks after events");
+    private static final Metrics.Histogram compareTime = Profiler.section("compare_blocks", "Time spent comparing block states");
+
     private HashMap<Location, BlockState> blocksChanged = new HashMap<>();
     private HashSet<World> worldEdited = new HashSet<>();
+    // Blocks to check at the end of the tick, with their state before the first change this tick
+    // null if the original block is already in blocksChanged
+    private LinkedHashMap<Location, BlockState> pending = new LinkedHashMap<>();
     private Plugin plugin;
     private Callback cb;
+    private BukkitTask task;
 
     public BlockLogger(Plugin plugin, Callback cb) {
         this.plugin = plugin;
         this.cb = cb;
     }
 
+    public void start() {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::checkPending, 1, 1);
+    }
+
+    public void stop() {
+        if(task != null) {
+            task.cancel();
+            task = null;
+        }
+        pending.clear();
+    }
+
     @EventHandler
     public void onBlockBreak(BlockBreakEvent eve) {
+        long start = System.nanoTime();
         afterEventUpdate(eve);
+        eventTime.observeSince(start);
     }
 
     @EventHandler
     public void onBlockPlace(BlockPlaceEvent eve) {
-        update(eve.getBlockPlaced().getLocation(), eve.getBlockReplacedState(), eve.getBlockPlaced().getState());
+        long start = System.nanoTime();
+        check(eve.getBlockPlaced().getLocation(), eve.getBlockReplacedState());
+        eventTime.observeSince(start);
     }
 
     @EventHandler
     public void onSignChange(SignChangeEvent eve) {
+        long start = System.nanoTime();
         afterEventUpdate(eve);
+        eventTime.observeSince(start);
     }
 
     @EventHandler
     public void onPlayerBucketEmpty(PlayerBucketEmptyEvent eve) {
+        long start = System.nanoTime();
         onPlayerBucket(eve);
+        eventTime.observeSince(start);
     }
 
     @EventHandler
     public void onPlayerBucketFill(PlayerBucketFillEvent eve) {
+        long start = System.nanoTime();
         onPlayerBucket(eve);
+        eventTime.observeSince(start);
     }
 
     @EventHandler
     public void onPlayerCommandPreprocess(PlayerCommandPreprocessEvent eve) {
         if(eve.getMessage().startsWith("//")) {
+            long start = System.nanoTime();
             World world = eve.getPlayer().getWorld();
             worldEdited.add(world);
             cb.onWorldChanged(world, 1);
+            eventTime.observeSince(start);
         }
     }
 
     public void onPlayerBucket(PlayerBucketEvent eve) {
-        BlockState oldBlock = eve.getBlockClicked().getRelative(eve.getBlockFace()).getState();
-        // Get the new block after this method finish
-        // Then record the change
-        Bukkit.getScheduler().runTask(plugin, () -> {
-            BlockState newBlock = eve.getBlockClicked().getRelative(eve.getBlockFace()).getState();
-            update(newBlock.getLocation(), oldBlock, newBlock);
-        });
+        check(eve.getBlockClicked().getRelative(eve.getBlockFace()));
     }
 
     // Updater for events that changes block after the event call
     private void afterEventUpdate(BlockEvent eve) {
-        BlockState oldBlock = eve.getBlock().getState();
-        // Get the new block after this method finish
-        // Then record the change
-        Bukkit.getScheduler().runTask(plugin, () -> {
-            BlockState newBlock = eve.getBlock().getState();
-            update(newBlock.getLocation(), oldBlock, newBlock);
-        });
+        check(eve.getBlock());
     }
 
     @EventHandler
     public void onInventoryClick(InventoryClickEvent eve) {
-        Container oldChest = toContainer(eve.getView().getTopInventory());
-        if(oldChest == null) return;
+        long start = System.nanoTime();
+        InventoryHolder holder = eve.getView().getTopInventory().getHolder();
+        if(holder instanceof Container)
+            check(((Container) holder).getBlock());
+        eventTime.observeSince(start);
+    }
 
-        // Get the new block after this method finish
-        // Then record the change
-        Bukkit.getScheduler().runTask(plugin, () -> {
-            Container newChest = toContainer(eve.getView().getTopInventory());
-            if(newChest == null) return;
-            update(newChest.getLocation(), oldChest, newChest);
-        });
+    private void check(Block block) {
+        Location pos = block.getLocation();
+        if(worldEdited.contains(pos.getWorld()) || pending.containsKey(pos)) return;
+        // Only the state before the first change matters, don't copy it again
+        check(pos, blocksChanged.containsKey(pos) ? null : block.getState());
     }
 
-    private Container toContainer(Inventory inv) {
-        InventoryHolder holder = inv.getHolder();
-        if(holder instanceof Container)
-            return (Container) holder;
-        return null;
+    // Get the new block after the event finish
+    // Then record the change with the rest of this tick's
+    private void check(Location pos, BlockState oldBlock) {
+        if(worldEdited.contains(pos.getWorld())) return;
+        pending.putIfAbsent(pos, oldBlock);
+    }
+
+    private void checkPending() {
+        if(pending.isEmpty()) return;
+        long start = System.nanoTime();
+
+        Set<World> changed = new HashSet<>();
+        for(Map.Entry<Location, BlockState> check : pending.entrySet()) {
+            Location pos = check.getKey();
+            if(update(pos, check.getValue(), pos.getBlock().getState()))
+                changed.add(pos.getWorld());
+        }
+        pending.clear();
+
+        for(World world : changed)
+            cb.onWorldChanged(world, (int) blocksChanged.keySet().stream().filter(p -> p.getWorld().equals(world)).count());
+        taskTime.observeSince(start);
     }
 
     public void reset() {
         blocksChanged.clear();
         worldEdited.clear();
+        pending.clear();
     }
 
     public void reset(World world) {
         blocksChanged.keySet().removeIf(p -> p.getWorld().equals(world));
         worldEdited.remove(world);
+        // Changed before the save, they're in the backup
+        pending.keySet().removeIf(p -> p.getWorld().equals(world));
+    }
+
+    // True if the world has block changes that haven't been backed up
+    public boolean isDirty(World world) {
+        return worldEdited.contains(world) || blocksChanged.keySet().stream().anyMatch(p -> p.getWorld().equals(world));
     }
 
-    private void update(Location pos, BlockState oldBlock, BlockState newBlock) {
+    // Returns true if the blocks changed in the world changed
+    private boolean update(Location pos, BlockState oldBlock, BlockState newBlock) {
         if(worldEdited.contains(pos.getWorld())) { // WorldEdit command was run in this world, not recording
-            return;
+            return false;
         } if(!blocksChanged.containsKey(pos)) { // haven't changed, record the original block
-            if(compareBlocks(oldBlock, newBlock)) return; // no change
+            if(oldBlock == null || compareBlocks(oldBlock, newBlock)) return false; // no change
             blocksChanged.put(pos, oldBlock);
         } else if(compareBlocks(blocksChanged.get(pos), newBlock)) { // changed back, remove from map
             blocksChanged.remove(pos);
+        } else {
+            return false;
         }
-
-        World world = pos.getWorld();
-        cb.onWorldChanged(world, (int) blocksChanged.keySet().stream().filter(p -> p.getWorld().equals(world)).count());
+        return true;
     }
 
     private boolean compareBlocks(BlockState a, BlockState b) {
+        long start = System.nanoTime();
+        try {
+            return blocksEqual(a, b);
+        } finally {
+            compareTime.observeSince(start);
+        }
+    }
+
+    private boolean blocksEqual(BlockState a, BlockState b) {
         if(emptyBlock(a) && emptyBlock(b)) return true;
 
         if(!a.getType().equals(b.getType())) return false;
@@ -0,0 +1,243 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.block.Block;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockIgniteEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.entity.EntityPlaceEvent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.hanging.HangingBreakEvent;
+import org.bukkit.event.hanging.HangingPlaceEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.event.Listener;
+import org.bukkit.event.vehicle.VehicleDestroyEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.World;
+
+import tw.mayortw.dropup.util.Metrics;
+import tw.mayortw.dropup.util.Profiler;
+
+/*
+ * Notices changes no player made directly, like explosions, pistons, fire,
+ * flowing water, hoppers and mobs
+ * These happen too often to compare blocks like BlockLogger does, so only
+ * the chunks they happened in are remembered
+ * Each kind of change is a separate listener and only enabled ones are
+ * registered, a disabled one costs nothing
+ * Hoppers are off by default, listening to them makes Paper fire an event
+ * for every item a hopper moves
+ */
+public class ChunkLogger {
+
+    private static final Metrics.Histogram eventTime = Profiler.section("chunk_event", "Time spent in ChunkLogger event handlers");
+
+    private HashMap<World, Set<Long>> chunksChanged = new HashMap<>();
+    private Plugin plugin;
+    private BlockLogger.Callback cb;
+    private List<Listener> listeners = new ArrayList<>();
+
+    public ChunkLogger(Plugin plugin, BlockLogger.Callback cb) {
+        this.plugin = plugin;
+        this.cb = cb;
+    }
+
+    // Listen to the kinds of changes enabled in change_detection. Call stop first to apply a new config
+    public void start() {
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("change_detection");
+        if(section == null || !section.getBoolean("enabled", true)) return;
+
+        register(section, "explosions", true, new Explosions());
+        register(section, "pistons", true, new Pistons());
+        register(section, "fire", true, new Fire());
+        register(section, "fluids", true, new Fluids());
+        register(section, "hoppers", false, new Hoppers());
+        register(section, "entities", true, new Entities());
+    }
+
+    // Changed chunks are kept, only the listeners are removed
+    public void stop() {
+        for(Listener listener : listeners)
+            HandlerList.unregisterAll(listener);
+        listeners.clear();
+    }
+
+    private void register(ConfigurationSection section, String kind, boolean def, Listener listener) {
+        if(section.getBoolean(kind, def)) {
+            plugin.getServer().getPluginManager().registerEvents(listener, plugin);
+            listeners.add(listener);
+        }
+    }
+
+    public void reset() {
+        chunksChanged.clear();
+    }
+
+    public void reset(World world) {
+        chunksChanged.remove(world);
+    }
+
+    // True if the world has changed chunks that haven't been backed up
+    public boolean isDirty(World world) {
+        Set<Long> chunks = chunksChanged.get(world);
+        return chunks != null && !chunks.isEmpty();
+    }
+
+    private void changed(Block block) {
+        changed(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
+    }
+
+    private void changed(Location pos) {
+        changed(pos.getWorld(), pos.getBlockX() >> 4, pos.getBlockZ() >> 4);
+    }
+
+    private void changed(World world, int chunkX, int chunkZ) {
+        long start = System.nanoTime();
+        Set<Long> chunks = chunksChanged.computeIfAbsent(world, w -> new HashSet<>());
+        // Only tell when a chunk changes the first time, the rest is a lookup
+        if(chunks.add(((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL)))
+            cb.onWorldChanged(world, chunks.size());
+        eventTime.observeSince(start);
+    }
+
+    private class Explosions implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onEntityExplode(EntityExplodeEvent eve) {
+            eve.blockList().forEach(ChunkLogger.this::changed);
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockExplode(BlockExplodeEvent eve) {
+            changed(eve.getBlock());
+            eve.blockList().forEach(ChunkLogger.this::changed);
+        }
+    }
+
+    private class Pistons implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onPistonExtend(BlockPistonExtendEvent eve) {
+            changed(eve.getBlock());
+            // Blocks moved into the next chunk
+            for(Block block : eve.getBlocks())
+                changed(block.getRelative(eve.getDirection()));
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onPistonRetract(BlockPistonRetractEvent eve) {
+            changed(eve.getBlock());
+            for(Block block : eve.getBlocks())
+                changed(block);
+        }
+    }
+
+    private class Fire implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockBurn(BlockBurnEvent eve) {
+            changed(eve.getBlock());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockIgnite(BlockIgniteEvent eve) {
+            changed(eve.getBlock());
+        }
+
+        // Fire, grass, vines and mushrooms spreading
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockSpread(BlockSpreadEvent eve) {
+            changed(eve.getBlock());
+        }
+
+        // Fire going out, ice and snow melting
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockFade(BlockFadeEvent eve) {
+            changed(eve.getBlock());
+        }
+    }
+
+    private class Fluids implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockFromTo(BlockFromToEvent eve) {
+            changed(eve.getToBlock());
+        }
+
+        // Obsidian, cobblestone, concrete, ice and snow forming
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onBlockForm(BlockFormEvent eve) {
+            changed(eve.getBlock());
+        }
+    }
+
+    private class Hoppers implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onInventoryMoveItem(InventoryMoveItemEvent eve) {
+            changed(eve.getSource());
+            changed(eve.getDestination());
+        }
+
+        private void changed(Inventory inv) {
+            // Hopper minecarts are entities, their location is still in a chunk
+            Location pos = inv.getLocation();
+            if(pos != null && pos.getWorld() != null)
+                ChunkLogger.this.changed(pos);
+        }
+    }
+
+    private class Entities implements Listener {
+        // Endermen, falling sand, trampled farmland, sheep eating grass
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onEntityChangeBlock(EntityChangeBlockEvent eve) {
+            changed(eve.getBlock());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onEntityDeath(EntityDeathEvent eve) {
+            if(!(eve.getEntity() instanceof Player)) // Players aren't saved in chunks
+                changed(eve.getEntity().getLocation());
+        }
+
+        // Armor stands, boats and minecarts
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onEntityPlace(EntityPlaceEvent eve) {
+            changed(eve.getEntity().getLocation());
+        }
+
+        // Item frames and paintings
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onHangingPlace(HangingPlaceEvent eve) {
+            changed(eve.getEntity().getLocation());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onHangingBreak(HangingBreakEvent eve) {
+            changed(eve.getEntity().getLocation());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onVehicleDestroy(VehicleDestroyEvent eve) {
+            changed(eve.getVehicle().getLocation());
+        }
+    }
+}
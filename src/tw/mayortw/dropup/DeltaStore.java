@@ -0,0 +1,164 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.World;
+
+import tw.mayortw.dropup.util.RegionDelta;
+
+/*
+ * Remembers the last backup of each world to make delta backups against
+ * Kept in the data folder:
+ *   deltas/<uid>.manifest  chunks of the last backup
+ *   deltas/<uid>.last      name and chain length of the last backup
+ *   deltas/<uid>.chains    base of every delta backup, so bases aren't deleted
+ */
+public class DeltaStore {
+
+    private Plugin plugin;
+    private File folder;
+    private int fullEvery;
+
+    private DeltaStore(Plugin plugin, int fullEvery) {
+        this.plugin = plugin;
+        this.folder = new File(plugin.getDataFolder(), "deltas");
+        this.fullEvery = fullEvery;
+    }
+
+    // Returns null if delta backups aren't enabled in the config
+    public static DeltaStore fromConfig(Plugin plugin) {
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("delta");
+        if(section == null || !section.getBoolean("enabled")) return null;
+        return new DeltaStore(plugin, Math.max(1, section.getInt("full_every", 24)));
+    }
+
+    /*
+     * The backup to make the next one a delta of
+     * Returns null if the next one should be a full backup
+     */
+    public synchronized Base getBase(World world) {
+        Properties last = load(world, ".last");
+        String name = last.getProperty("name");
+        int chain = Integer.parseInt(last.getProperty("chain", "0"));
+        if(name == null || chain + 1 >= fullEvery) return null;
+
+        File manifestFile = file(world, ".manifest");
+        try(InputStream in = new FileInputStream(manifestFile)) {
+            return new Base(name, chain, RegionDelta.Manifest.read(in));
+        } catch(IOException e) {
+            if(manifestFile.exists())
+                plugin.getLogger().warning("Cannot read delta manifest of " + world.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Call after a backup is stored. base is null for a full backup
+    public synchronized void saved(World world, String name, Base base, RegionDelta.Manifest manifest) {
+        folder.mkdirs();
+        try(OutputStream out = new FileOutputStream(file(world, ".manifest"))) {
+            manifest.write(out);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot write delta manifest of " + world.getName() + ": " + e.getMessage());
+            // Without it the next backup has to be full
+            file(world, ".last").delete();
+            return;
+        }
+
+        Properties last = new Properties();
+        last.setProperty("name", name);
+        last.setProperty("chain", String.valueOf(base != null ? base.chain + 1 : 0));
+        store(world, ".last", last);
+
+        if(base != null) {
+            Properties chains = load(world, ".chains");
+            chains.setProperty(name, base.name);
+            store(world, ".chains", chains);
+        }
+    }
+
+    // Call after a backup is deleted
+    public synchronized void deleted(World world, String name) {
+        Properties chains = load(world, ".chains");
+        if(chains.remove(name) != null)
+            store(world, ".chains", chains);
+    }
+
+    // The backups plus every backup they need to be restored
+    public synchronized Set<String> required(World world, Collection<String> backups) {
+        Properties chains = load(world, ".chains");
+        Set<String> required = new HashSet<>();
+        Deque<String> left = new ArrayDeque<>(backups);
+        while(!left.isEmpty()) {
+            String name = left.pop();
+            if(!required.add(name)) continue;
+            String base = chains.getProperty(name);
+            if(base != null)
+                left.push(base);
+        }
+        return required;
+    }
+
+    // Backups that are deltas of this one
+    public synchronized Set<String> dependents(World world, String name) {
+        Properties chains = load(world, ".chains");
+        Set<String> dependents = new HashSet<>();
+        for(String backup : chains.stringPropertyNames()) {
+            if(name.equals(chains.getProperty(backup)))
+                dependents.add(backup);
+        }
+        return dependents;
+    }
+
+    private File file(World world, String suffix) {
+        return new File(folder, world.getUID().toString() + suffix);
+    }
+
+    private Properties load(World world, String suffix) {
+        Properties props = new Properties();
+        File file = file(world, suffix);
+        if(!file.exists()) return props;
+        try(InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot read " + file + ": " + e.getMessage());
+        }
+        return props;
+    }
+
+    private void store(World world, String suffix, Properties props) {
+        File file = file(world, suffix);
+        try(OutputStream out = new FileOutputStream(file)) {
+            props.store(out, null);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot write " + file + ": " + e.getMessage());
+        }
+    }
+
+    public static class Base {
+        public final String name;
+        public final int chain; // deltas between it and the last full backup
+        public final RegionDelta.Manifest manifest;
+
+        Base(String name, int chain, RegionDelta.Manifest manifest) {
+            this.name = name;
+            this.chain = chain;
+            this.manifest = manifest;
+        }
+    }
+}
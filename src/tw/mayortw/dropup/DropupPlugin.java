@@ -5,10 +5,17 @@ package tw.mayortw.dropup;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 
 import org.bukkit.block.BlockState;
 import org.bukkit.command.*;
@@ -35,14 +42,36 @@ import com.onarandombox.MultiverseCore.api.MVWorldManager;
 import com.onarandombox.MultiverseCore.api.MultiverseWorld;
 
 import tw.mayortw.dropup.util.GoogleDriveUtil;
+import tw.mayortw.dropup.util.LocalStorage;
+import tw.mayortw.dropup.util.Metrics;
+import tw.mayortw.dropup.util.MetricsServer;
+import tw.mayortw.dropup.util.Profiler;
+import tw.mayortw.dropup.util.RemoteZip;
+import tw.mayortw.dropup.util.StorageBackend;
+import tw.mayortw.dropup.util.VolumeStorage;
 
-public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Callback {
+public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Callback, WorldUploader.Callback {
+
+    // More than this is better off restoring the whole world
+    private static final int MAX_RESTORE_REGIONS = 256;
+
+    private static final Metrics.Histogram commandTime = Profiler.section("command", "Time spent running commands");
+    private static final Metrics.Histogram tabCompleteTime = Profiler.section("tab_complete", "Time spent on tab completion");
 
     private WorldUploader worldUploader;
     private WorldDownloader worldDownloader;
+    private BackupScrubber scrubber;
+    private SpeedController speedController;
     private MVWorldManager mvWorldManager;
     private BlockLogger blockLogger = new BlockLogger(this, this);
+    private ChunkLogger chunkLogger = new ChunkLogger(this, this);
+    private RegionTracker regionTracker;
     private GoogleDriveUtil drive = new GoogleDriveUtil();
+    private TransferStats stats = new TransferStats(this);
+    private TickMonitor tickMonitor = new TickMonitor(this);
+    private ExecutorService io;
+    private WorldSaver saver;
+    private MetricsServer metricsServer;
 
     private boolean disabled = false;
     private String disabledReason;
@@ -58,9 +87,26 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
             mvWorldManager = mvPlugin.getCore().getMVWorldManager();
 
         saveDefaultConfig();
-        driveSignIn();
+        io = IoExecutor.create(this);
+        saver = WorldSaver.create(getLogger());
+        stats.start();
+        tickMonitor.start();
+        startMetricsServer();
+        if(usingDrive())
+            driveSignIn();
+        else
+            startWorkers(new LocalStorage(getServer().getWorldContainer().toPath()
+                        .resolve(getConfig().getString("local_storage_path"))));
         pluginManager.registerEvents(this, this);
-        pluginManager.registerEvents(blockLogger, this);
+        // Either go by the region files the server saves, or by events
+        regionTracker = RegionTracker.fromConfig(this, io, this);
+        if(regionTracker != null) {
+            regionTracker.start();
+        } else {
+            pluginManager.registerEvents(blockLogger, this);
+            blockLogger.start();
+            chunkLogger.start();
+        }
 
         String disabledReason = getConfig().getString("disabled_reason");
         if(disabledReason != null) {
@@ -70,6 +116,24 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
         }
     }
 
+    private void startMetricsServer() {
+        if(metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+
+        if(!getConfig().getBoolean("metrics_enabled")) return;
+
+        int port = getConfig().getInt("metrics_port");
+        try {
+            metricsServer = new MetricsServer(port);
+            metricsServer.start();
+            getLogger().info("Serving metrics on http://localhost:" + port + "/metrics");
+        } catch(java.io.IOException e) {
+            getLogger().warning("Cannot start metrics server on port " + port + ": " + e.getMessage());
+        }
+    }
+
     private void driveSignIn() {
         String token = getConfig().getString("drive_token");
 
@@ -88,6 +152,7 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
 
     private void loginFailed() {
         getLogger().warning("Google Drive not signed in. Go to " + drive.getAuthUrl() + " to get the authorization code and type /dropup signin <code> to sign in");
+        stopSpeedController();
         worldUploader = null;
         worldDownloader = null;
         disabled = true;
@@ -95,13 +160,54 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
     }
 
     private void loginSuccess() {
-        worldUploader = new WorldUploader(this, drive, blockLogger::reset);
-        worldDownloader = new WorldDownloader(this, drive, mvWorldManager);
+        startWorkers(drive);
         disabled = false;
     }
 
+    private void startWorkers(StorageBackend storage) {
+        // Big backups may be stored as volumes
+        storage = new VolumeStorage(storage);
+        RetentionPolicy retention = RetentionPolicy.fromConfig(getConfig(), getServer().getWorldContainer().toPath());
+        worldUploader = new WorldUploader(this, storage, retention, DeltaStore.fromConfig(this),
+                ZipGovernor.fromConfig(this, tickMonitor), saver, stats, io, this);
+        worldDownloader = new WorldDownloader(this, storage, retention, stats, io, mvWorldManager);
+        if(scrubber != null)
+            scrubber.stop();
+        scrubber = new BackupScrubber(this, storage, retention, io);
+        scrubber.start();
+        startSpeedController();
+    }
+
+    private void startSpeedController() {
+        stopSpeedController();
+        speedController = SpeedController.fromConfig(this, worldUploader, tickMonitor);
+        if(speedController != null)
+            speedController.start();
+    }
+
+    private void stopSpeedController() {
+        if(speedController != null) {
+            speedController.stop();
+            speedController = null;
+        }
+    }
+
+    // Otherwise store backups in local_storage_path
+    private boolean usingDrive() {
+        return !getConfig().getString("storage", "drive").equalsIgnoreCase("local");
+    }
+
     @Override
     public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
+        long start = System.nanoTime();
+        try {
+            return runCommand(sender, args);
+        } finally {
+            commandTime.observeSince(start);
+        }
+    }
+
+    private boolean runCommand(CommandSender sender, String[] args) {
         if(args.length < 1) return false;
 
         // Handler signing in first
@@ -141,7 +247,7 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                 loginFailed();
             }
             return true;
-        } else if(!drive.loggedIn()) {
+        } else if(usingDrive() && !drive.loggedIn()) {
             sender.sendMessage("Google Drive 尚未登入，請用 /dropup signin 來登入");
             return true;
         }
@@ -236,8 +342,46 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                         return true;
                     }
 
-                    if(worldDownloader.getCurrentWorld() != null) {
-                        sender.sendMessage("還有世界在回復，晚點再試");
+                    World world = getServer().getWorld(args[1]);
+                    if(world == null) {
+                        sender.sendMessage("找不到世界");
+                        return true;
+                    }
+
+                    // Check if backup exists
+                    String backup = args[2] + ".zip";
+                    if(!worldDownloader.listBackups(world).stream()
+                            .anyMatch(m -> m.equals(args[2] + ".zip"))) {
+                        sender.sendMessage("找不到備份");
+                        return true;
+                    }
+
+                    startRestore(sender, Collections.singletonList(world),
+                            () -> worldDownloader.restoreWorld(world, backup));
+                    return true;
+                }
+
+            case "restoreregion":
+            case "rereg":
+                {
+                    if(!checkCommandPermission(sender, "dropup.restore")) return true;
+                    if(mvWorldManager == null) {
+                        sender.sendMessage("找不到Multiverse-Core，無法在執行中回復");
+                        return true;
+                    }
+
+                    if(args.length <= 1) {
+                        sender.sendMessage("請指定一個世界");
+                        return true;
+                    }
+
+                    if(args.length <= 2) {
+                        sender.sendMessage("請指定一個備份");
+                        return true;
+                    }
+
+                    if(args.length <= 3) {
+                        sender.sendMessage("請指定區域");
                         return true;
                     }
 
@@ -247,42 +391,77 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                         return true;
                     }
 
-                    // Check if there's player in the world
-                    List<Player> players = world.getPlayers();
-                    if(players.size() > 0) {
-                        if(players.size() <= 5) {
-                            sender.sendMessage("世界裡還有玩家： " +
-                                    players.stream()
-                                    .map(Player::getName)
-                                    .collect(java.util.stream.Collectors.joining(", ")));
-                        } else {
-                            sender.sendMessage("世界裡還有玩家");
+                    String backup = args[2] + ".zip";
+                    if(!worldDownloader.listBackups(world).contains(backup)) {
+                        sender.sendMessage("找不到備份");
+                        return true;
+                    }
+
+                    Set<String> regions = new TreeSet<>();
+                    for(int i = 3; i < args.length; i++) {
+                        try {
+                            regions.addAll(parseRegions(sender, args[i]));
+                        } catch(TooManyRegionsException e) {
+                            sender.sendMessage("區域太多了 (" + e.count + ")，請直接回復整個世界");
+                            return true;
+                        } catch(IllegalArgumentException e) {
+                            sender.sendMessage(args[i] + " 不是區域。用 r.X.Z、區塊 X,Z 或區塊範圍 X1,Z1:X2,Z2");
+                            return true;
+                        }
+
+                        if(regions.size() > MAX_RESTORE_REGIONS) {
+                            sender.sendMessage("區域太多了 (" + regions.size() + ")，請直接回復整個世界");
+                            return true;
                         }
+                    }
+
+                    startRestore(sender, Collections.singletonList(world),
+                            () -> worldDownloader.restoreRegions(world, backup, regions));
+                    return true;
+                }
+
+            case "restoregroup":
+            case "regroup":
+                {
+                    if(!checkCommandPermission(sender, "dropup.restore")) return true;
+                    if(mvWorldManager == null) {
+                        sender.sendMessage("找不到Multiverse-Core，無法在執行中回復");
                         return true;
                     }
 
-                    // Check if backup exists
-                    String backup = args[2] + ".zip";
-                    if(!worldDownloader.listBackups(world).stream()
-                            .anyMatch(m -> m.equals(args[2] + ".zip"))) {
-                        sender.sendMessage("找不到備份");
+                    if(args.length <= 1) {
+                        sender.sendMessage("請指定一個備份");
                         return true;
                     }
 
-                    // Cancel future backup
-                    worldUploader.stopBackupWorldLater(world);
+                    if(args.length <= 2) {
+                        sender.sendMessage("請指定世界");
+                        return true;
+                    }
 
-                    // wait for current backup task the restore
-                    getServer().getScheduler().runTaskAsynchronously(this, () -> {
-                        sender.sendMessage("準備恢復 " + world.getName());
-                        worldUploader.waitForBackup(world);
+                    // Use the latest backup of each world made before the given one
+                    String time = args[1];
+                    Map<World, String> backups = new LinkedHashMap<>();
+                    for(int i = 2; i < args.length; i++) {
+                        World world = getServer().getWorld(args[i]);
+                        if(world == null) {
+                            sender.sendMessage("找不到世界 " + args[i]);
+                            return true;
+                        }
 
-                        // Now download and restore
-                        getServer().getScheduler().runTask(this, () -> {
-                            worldDownloader.restoreWorld(world, backup);
-                        });
-                    });
+                        String backup = worldDownloader.listBackups(world).stream()
+                            .filter(m -> m.replaceAll("\\.[^.]*$", "").compareTo(time) <= 0)
+                            .max(Comparator.naturalOrder())
+                            .orElse(null);
+                        if(backup == null) {
+                            sender.sendMessage(world.getName() + " 找不到備份");
+                            return true;
+                        }
+
+                        backups.put(world, backup);
+                    }
 
+                    startRestore(sender, backups.keySet(), () -> worldDownloader.restoreWorlds(backups));
                     return true;
                 }
 
@@ -311,16 +490,48 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                     return true;
                 }
 
+            case "scrub":
+                {
+                    if(!checkCommandPermission(sender, "dropup.list")) return true;
+                    List<World> worlds;
+                    if(args.length > 1) {
+                        World world = getServer().getWorld(args[1]);
+                        if(world == null) {
+                            sender.sendMessage("找不到世界");
+                            return true;
+                        }
+                        worlds = Collections.singletonList(world);
+                    } else {
+                        worlds = getServer().getWorlds();
+                    }
+
+                    if(scrubber.scrub(worlds))
+                        sender.sendMessage("開始檢查備份");
+                    else
+                        sender.sendMessage("已經在檢查備份了");
+                    return true;
+                }
+
             case "uploadspeed":
             case "us":
                 if(!checkCommandPermission(sender, "dropup.setting")) return true;
                 if(args.length <= 1) {
+                    if(speedController != null) {
+                        int speed = speedController.getSpeed();
+                        sender.sendMessage("上傳速度： 自動調整，目前 " + (speed > 0 ? speed + "kb/s" : "無限制"));
+                        return true;
+                    }
                     int speed = getConfig().getInt("upload_speed");
                     sender.sendMessage("上傳速度： " + (speed > 0 ? speed + "kb/s" : "無限制"));
                     return true;
                 }
                 try {
                     int speed = Integer.parseInt(args[1]);
+                    // Setting it by hand turns off adaptive speed until reload
+                    if(speedController != null) {
+                        stopSpeedController();
+                        sender.sendMessage("已關閉自動調整上傳速度，重新載入設定檔可再開啟");
+                    }
                     getConfig().set("upload_speed", speed);
                     worldUploader.setUploadSpeed(speed);
                     sender.sendMessage("上傳速度設為： " + (speed > 0 ? speed + "kb/s" : "無限制"));
@@ -373,8 +584,14 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
             case "rl":
                 if(!checkCommandPermission(sender, "dropup.setting")) return true;
                 reloadConfig();
+                startMetricsServer();
                 worldDownloader.setDownloadSpeed(getConfig().getInt("download_speed"));
                 worldUploader.setUploadSpeed(getConfig().getInt("upload_speed"));
+                startSpeedController();
+                if(regionTracker == null) {
+                    chunkLogger.stop();
+                    chunkLogger.start();
+                }
                 sender.sendMessage("已重新載入設定檔");
                 return true;
 
@@ -391,6 +608,19 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                     int maxLines = 10;
                     int skip = 0;
 
+                    // Contents of a backup
+                    if(args.length > 2 && !args[2].matches("-?\\d+")) {
+                        String backup = args[2] + ".zip";
+                        String folder = args.length > 3 ? args[3] : "";
+                        if(args.length > 4) {
+                            try {
+                                skip = Integer.parseInt(args[4]);
+                            } catch(NumberFormatException e) {}
+                        }
+                        listBackupContents(sender, world, backup, folder, skip);
+                        return true;
+                    }
+
                     if(args.length > 2) {
                         try {
                             skip = Integer.parseInt(args[2]);
@@ -424,10 +654,13 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                 if(!checkCommandPermission(sender, "dropup.list")) return true;
 
                 sender.sendMessage("§f備份中：");
-                World uploading = worldUploader.getCurrentWorld();
-                if(uploading != null)
-                    sender.sendMessage("§e    " + uploading.getName());
-                else
+                List<TransferStats.Job> backupJobs = stats.getActiveJobs().stream()
+                    .filter(job -> job.getType().equals("backup"))
+                    .collect(java.util.stream.Collectors.toList());
+                if(backupJobs.size() > 0) {
+                    for(TransferStats.Job job : backupJobs)
+                        sender.sendMessage("§e    " + job);
+                } else
                     sender.sendMessage("    無");
 
                 sender.sendMessage("§f等待中：");
@@ -440,10 +673,21 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
                     sender.sendMessage("    無");
 
                 sender.sendMessage("§f恢復中：");
-                World restoring = worldDownloader.getCurrentWorld();
-                if(restoring != null)
-                    sender.sendMessage("§e    " + restoring.getName());
-                else
+                List<TransferStats.Job> restoreJobs = stats.getActiveJobs().stream()
+                    .filter(job -> job.getType().equals("restore"))
+                    .collect(java.util.stream.Collectors.toList());
+                if(restoreJobs.size() > 0) {
+                    for(TransferStats.Job job : restoreJobs)
+                        sender.sendMessage("§e    " + job);
+                } else
+                    sender.sendMessage("    無");
+
+                sender.sendMessage("§f最近：");
+                List<TransferStats.Job> recentJobs = stats.getRecentJobs(3);
+                if(recentJobs.size() > 0) {
+                    for(TransferStats.Job job : recentJobs)
+                        sender.sendMessage("§7    " + job.getType() + " " + job);
+                } else
                     sender.sendMessage("    無");
 
                 if(!disabled) {
@@ -454,6 +698,17 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
 
                 return true;
 
+            case "profile":
+                if(!checkCommandPermission(sender, "dropup.list")) return true;
+                sender.sendMessage("§f伺服器執行緒耗時：");
+                List<String> sections = Profiler.report();
+                if(sections.size() > 0) {
+                    for(String line : sections)
+                        sender.sendMessage("§e    " + line);
+                } else
+                    sender.sendMessage("    無");
+                return true;
+
             case "menu":
             case "me":
                 if(!checkCommandPermission(sender, "dropup.list")) return true;
@@ -615,6 +870,151 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
         return false;
     }
 
+    // List a folder in a backup like ls, reading only the zip index
+    private void listBackupContents(CommandSender sender, World world, String backup, String folder, int skip) {
+        String prefix = folder.replace('\\', '/').replaceAll("^/+|/+$", "");
+        if(!prefix.isEmpty()) prefix += "/";
+        String dir = prefix;
+
+        io.execute(() -> {
+            List<RemoteZip.Entry> entries;
+            try {
+                entries = worldDownloader.listBackupContents(world, backup);
+            } catch(StorageBackend.StorageException | java.io.IOException e) {
+                sender.sendMessage("無法讀取備份： " + e.getMessage());
+                return;
+            }
+
+            // file or folder name -> {file count, total size}, folders end with /
+            Map<String, long[]> children = new TreeMap<>();
+            for(RemoteZip.Entry entry : entries) {
+                if(!entry.name.startsWith(dir) || entry.name.equals(dir)) continue;
+                String rest = entry.name.substring(dir.length());
+                int slash = rest.indexOf('/');
+                String child = slash >= 0 ? rest.substring(0, slash + 1) : rest;
+                long[] stat = children.computeIfAbsent(child, k -> new long[2]);
+                if(!entry.isDirectory()) {
+                    stat[0]++;
+                    stat[1] += entry.size;
+                }
+            }
+
+            if(children.isEmpty()) {
+                sender.sendMessage("找不到 " + (dir.isEmpty() ? "/" : dir));
+                return;
+            }
+
+            int maxLines = 10;
+            sender.sendMessage(backup + " /" + dir + "：");
+            children.entrySet().stream()
+                .skip(skip)
+                .limit(maxLines)
+                .forEachOrdered(child -> {
+                    long[] stat = child.getValue();
+                    if(child.getKey().endsWith("/"))
+                        sender.sendMessage(child.getKey() + " §7" + stat[0] + " 個檔案 " + TransferStats.formatBytes(stat[1]));
+                    else
+                        sender.sendMessage(child.getKey() + " §7" + TransferStats.formatBytes(stat[1]));
+                });
+            if(children.size() - skip > maxLines)
+                sender.sendMessage("More...");
+        });
+    }
+
+    // Check the worlds, then wait for their backups and run restore in main thread
+    private void startRestore(CommandSender sender, Collection<World> worlds, Runnable restore) {
+        for(World world : worlds) {
+            if(worldDownloader.isRestoring(world)) {
+                sender.sendMessage(world.getName() + " 已經在回復了");
+                return;
+            }
+
+            // Check if there's player in the world
+            List<Player> players = world.getPlayers();
+            if(players.size() > 0) {
+                if(players.size() <= 5) {
+                    sender.sendMessage(world.getName() + " 裡還有玩家： " +
+                            players.stream()
+                            .map(Player::getName)
+                            .collect(java.util.stream.Collectors.joining(", ")));
+                } else {
+                    sender.sendMessage(world.getName() + " 裡還有玩家");
+                }
+                return;
+            }
+        }
+
+        // Cancel future backup
+        for(World world : worlds)
+            worldUploader.stopBackupWorldLater(world);
+
+        // wait for current backup task the restore
+        io.execute(() -> {
+            for(World world : worlds) {
+                sender.sendMessage("準備恢復 " + world.getName());
+                worldUploader.waitForBackup(world);
+            }
+
+            // Now download and restore
+            getServer().getScheduler().runTask(this, restore);
+        });
+    }
+
+    /*
+     * Region file names from r.X.Z, chunk X,Z or chunk range X1,Z1:X2,Z2
+     * ~ is the chunk the sender is in
+     */
+    private List<String> parseRegions(CommandSender sender, String spec) {
+        List<String> regions = new ArrayList<>();
+
+        if(spec.startsWith("r.")) {
+            String[] parts = spec.replaceAll("\\.mca$", "").split("\\.");
+            if(parts.length != 3) throw new IllegalArgumentException(spec);
+            regions.add(String.format("r.%d.%d.mca", Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            return regions;
+        }
+
+        String[] range = spec.split(":");
+        if(range.length > 2) throw new IllegalArgumentException(spec);
+        int[] from = parseChunk(sender, range[0]);
+        int[] to = range.length > 1 ? parseChunk(sender, range[1]) : from;
+
+        // 32x32 chunks in a region
+        int minX = Math.min(from[0], to[0]) >> 5, maxX = Math.max(from[0], to[0]) >> 5;
+        int minZ = Math.min(from[1], to[1]) >> 5, maxZ = Math.max(from[1], to[1]) >> 5;
+        // Before making the list, a typo can cover billions of regions
+        long count = ((long) maxX - minX + 1) * ((long) maxZ - minZ + 1);
+        if(count > MAX_RESTORE_REGIONS)
+            throw new TooManyRegionsException(count);
+
+        for(int x = minX; x <= maxX; x++) {
+            for(int z = minZ; z <= maxZ; z++)
+                regions.add(String.format("r.%d.%d.mca", x, z));
+        }
+        return regions;
+    }
+
+    private static class TooManyRegionsException extends RuntimeException {
+        static private final long serialVersionUID = 0;
+        final long count;
+
+        TooManyRegionsException(long count) {
+            this.count = count;
+        }
+    }
+
+    private int[] parseChunk(CommandSender sender, String chunk) {
+        if(chunk.equals("~")) {
+            if(!(sender instanceof Entity)) throw new IllegalArgumentException(chunk);
+            Location loc = ((Entity) sender).getLocation();
+            return new int[] {loc.getBlockX() >> 4, loc.getBlockZ() >> 4};
+        }
+
+        String[] parts = chunk.split(",");
+        if(parts.length != 2) throw new IllegalArgumentException(chunk);
+        return new int[] {Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+    }
+
     private boolean checkCommandPermission(CommandSender sender, String perm) {
         if(!(sender instanceof ConsoleCommandSender) && !sender.hasPermission(perm)) {
             sender.sendMessage("你沒有權限做這件事。需要 " + perm);
@@ -625,21 +1025,32 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
 
     @Override
     public List<String> onTabComplete(CommandSender sender, Command cmd, String alias, String[] args) {
+        long start = System.nanoTime();
+        try {
+            return tabComplete(sender, args);
+        } finally {
+            tabCompleteTime.observeSince(start);
+        }
+    }
+
+    private List<String> tabComplete(CommandSender sender, String[] args) {
         if(args.length == 1) {
             return Arrays.asList(Arrays.stream(new String[] {
                 "backup", "bk", "backupall", "bkall",
                 "backuptime", "bktime", "maxbackup", "maxbk",
-                "restore", "re", "delete",
+                "restore", "re", "restoregroup", "regroup", "restoreregion", "rereg", "delete", "scrub",
                 "uploadspeed", "us", "downloadspeed", "ds",
                 "disable", "enable", "reload", "rl",
-                "list", "ls", "status", "st", "menu", "me", "signin"
+                "list", "ls", "status", "st", "profile", "menu", "me", "signin"
             }).filter(s -> s.startsWith(args[0].toLowerCase())).toArray(String[]::new));
         } else if(args.length == 2) {
             if(mvWorldManager != null) {
                 switch(args[0].toLowerCase()) {
                     case "backup":  case "bk":
                     case "restore": case "re":
+                    case "restoreregion": case "rereg":
                     case "delete":
+                    case "scrub":
                     case "list":    case "ls":
                     case "menu":    case "me":
                         if(!sender.hasPermission("dropup.list")) break;
@@ -650,7 +1061,9 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
         } else if(args.length == 3) {
             switch(args[0].toLowerCase()) {
                 case "restore": case "re":
+                case "restoreregion": case "rereg":
                 case "delete":
+                case "list": case "ls":
                     if(!sender.hasPermission("dropup.list")) break;
                     World world = getServer().getWorld(args[1]);
                     if(world != null) {
@@ -662,6 +1075,16 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
             }
         }
 
+        // World list for group restore
+        if(args.length >= 3 && mvWorldManager != null) {
+            switch(args[0].toLowerCase()) {
+                case "restoregroup": case "regroup":
+                    if(!sender.hasPermission("dropup.list")) break;
+                    return Arrays.asList(mvWorldManager.getMVWorlds().stream().map(MultiverseWorld::getName)
+                            .filter(s -> s.startsWith(args[args.length - 1])).toArray(String[]::new));
+            }
+        }
+
         return null;
     }
 
@@ -677,21 +1100,62 @@ public class DropupPlugin extends JavaPlugin implements Listener, BlockLogger.Ca
         if(worldUploader != null) {
             if(!disabled && changeCount > 0)
                 worldUploader.backupWorldLater(world);
-            else
+            else if(disabled || !isWorldDirty(world)) // Changed back, unless something else changed too
                 worldUploader.stopBackupWorldLater(world);
         }
     }
 
+    @Override
+    public void preWorldBackup(World world) {
+        blockLogger.reset(world);
+        chunkLogger.reset(world);
+        if(regionTracker != null)
+            regionTracker.reset(world);
+    }
+
+    @Override
+    public void postWorldSave(World world) {
+        if(regionTracker != null)
+            regionTracker.postWorldSave(world);
+    }
+
+    @Override
+    public void postWorldBackup(World world, boolean success) {
+        if(regionTracker != null)
+            regionTracker.postWorldBackup(world, success);
+    }
+
+    @Override
+    public boolean isWorldDirty(World world) {
+        return blockLogger.isDirty(world) || chunkLogger.isDirty(world)
+            || (regionTracker != null && regionTracker.isDirty(world));
+    }
+
     public void onDisable() {
+        stats.stop();
+        tickMonitor.stop();
+        blockLogger.stop();
+        chunkLogger.stop();
+        if(regionTracker != null)
+            regionTracker.stop();
+        stopSpeedController();
+        if(metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
         if(worldUploader != null) {
             worldUploader.finishAllBackups();
             worldUploader.stopWorker();
         }
+        if(scrubber != null)
+            scrubber.stop();
         if(worldDownloader != null) {
             worldDownloader.stopAllDownloads();
             worldDownloader.removeDownloadDir();
         }
 
+        io.shutdown();
+        stats.dump();
         saveConfig();
     }
 }
@@ -0,0 +1,82 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+/*
+ * Runs Dropup's blocking I/O so it doesn't hold threads of the Bukkit
+ * async pool other plugins share
+ * Uses a virtual thread per task when the runtime has them (Java 21+),
+ * otherwise up to io_threads platform threads
+ */
+public class IoExecutor {
+
+    // Thread.isVirtual(), null before Java 21
+    private static final Method isVirtual = isVirtualMethod();
+
+    private IoExecutor() {}
+
+    public static ExecutorService create(Plugin plugin) {
+        try {
+            // Called by reflection so it still builds and runs on older Java
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) virtual.invoke(null);
+            plugin.getLogger().info("Running I/O on virtual threads");
+            return executor;
+        } catch(NoSuchMethodException e) {
+            // Older Java
+        } catch(ReflectiveOperationException e) {
+            plugin.getLogger().warning("Cannot use virtual threads: " + e);
+        }
+
+        int maxThreads = Math.max(2, plugin.getConfig().getInt("io_threads", 32));
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, plugin.getName() + " I/O #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        // Tasks are never queued, a queued task could be one a running task is waiting for
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), factory, (task, pool) -> {
+            if(pool.isShutdown())
+                throw new RejectedExecutionException("I/O executor is shut down");
+            // Every thread is busy. Never block the server thread with it
+            if(Bukkit.isPrimaryThread())
+                Bukkit.getScheduler().runTaskAsynchronously(plugin, task);
+            else
+                task.run();
+        });
+    }
+
+    // Virtual threads ignore priorities
+    public static boolean isVirtual(Thread thread) {
+        if(isVirtual == null) return false;
+        try {
+            return (Boolean) isVirtual.invoke(thread);
+        } catch(ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
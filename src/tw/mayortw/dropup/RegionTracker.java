@@ -0,0 +1,192 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.World;
+
+import tw.mayortw.dropup.util.Metrics;
+import tw.mayortw.dropup.util.RegionDelta;
+
+/*
+ * Finds changes from what the server saves instead of from block events
+ * When chunks are saved, the chunk timestamps in the region file headers
+ * are compared with the ones right after the last backup
+ * Nothing is done per block or per tick, but changes are only noticed
+ * after the server saves them, by autosave or unloading chunks
+ *
+ * Kept in the data folder:
+ *   regions/<uid>.manifest  chunk timestamps of the last backup
+ */
+public class RegionTracker implements Listener {
+
+    private static final Metrics.Histogram checkTime = Metrics.timer("dropup_region_check_seconds", "Time spent reading region headers for changes");
+
+    private static final long INTERVAL = 30 * 20; // in ticks, at most one check per world in this time
+
+    private Plugin plugin;
+    private ExecutorService io;
+    private BlockLogger.Callback cb;
+    private File folder;
+    private BukkitTask task;
+
+    // Worlds that saved chunks since they were checked
+    private Set<World> toCheck = ConcurrentHashMap.newKeySet();
+    // Worlds being checked, only used on the main thread
+    private Set<World> checking = new HashSet<>();
+    private Map<World, Integer> chunksChanged = new ConcurrentHashMap<>();
+    private Map<World, RegionDelta.Manifest> lastBackup = new ConcurrentHashMap<>();
+    // Taken after a world is saved for backup, kept if the backup finishes
+    private Map<World, RegionDelta.Manifest> backingUp = new ConcurrentHashMap<>();
+
+    private RegionTracker(Plugin plugin, ExecutorService io, BlockLogger.Callback cb) {
+        this.plugin = plugin;
+        this.io = io;
+        this.cb = cb;
+        this.folder = new File(plugin.getDataFolder(), "regions");
+    }
+
+    // Returns null unless change_tracking is regions in the config
+    public static RegionTracker fromConfig(Plugin plugin, ExecutorService io, BlockLogger.Callback cb) {
+        if(!"regions".equalsIgnoreCase(plugin.getConfig().getString("change_tracking"))) return null;
+        return new RegionTracker(plugin, io, cb);
+    }
+
+    public void start() {
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        // Could have changed while the plugin wasn't running
+        toCheck.addAll(Bukkit.getWorlds());
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::checkWorlds, 20, INTERVAL);
+    }
+
+    public void stop() {
+        if(task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent eve) {
+        if(eve.isSaveChunk())
+            toCheck.add(eve.getWorld());
+    }
+
+    // Called before the chunks are written, they're checked on the next run
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldSave(WorldSaveEvent eve) {
+        toCheck.add(eve.getWorld());
+    }
+
+    public void reset(World world) {
+        chunksChanged.remove(world);
+    }
+
+    // True if the world saved chunks that haven't been backed up
+    public boolean isDirty(World world) {
+        return chunksChanged.getOrDefault(world, 0) > 0;
+    }
+
+    // Call off the server thread, after the world is saved for a backup
+    public void postWorldSave(World world) {
+        try {
+            backingUp.put(world, RegionDelta.Manifest.readHeaders(world.getWorldFolder().toPath()));
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot read region files of " + world.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public void postWorldBackup(World world, boolean success) {
+        RegionDelta.Manifest manifest = backingUp.remove(world);
+        if(!success || manifest == null) return;
+
+        lastBackup.put(world, manifest);
+        // A check that started before it went by the backup before
+        toCheck.add(world);
+        folder.mkdirs();
+        try(OutputStream out = new FileOutputStream(file(world))) {
+            manifest.write(out);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot write region manifest of " + world.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void checkWorlds() {
+        for(World world : new ArrayList<>(toCheck)) {
+            // A slow check from before is still running, it's checked again after that
+            if(!checking.add(world)) continue;
+            toCheck.remove(world);
+            io.execute(() -> {
+                int changed = -1;
+                try {
+                    changed = changedChunks(world);
+                } finally {
+                    int result = changed;
+                    Bukkit.getScheduler().runTask(plugin, () -> {
+                        checking.remove(world);
+                        if(result < 0) return;
+                        chunksChanged.put(world, result);
+                        cb.onWorldChanged(world, result);
+                    });
+                }
+            });
+        }
+    }
+
+    // -1 if it can't be told
+    private int changedChunks(World world) {
+        long start = System.nanoTime();
+        try {
+            RegionDelta.Manifest now = RegionDelta.Manifest.readHeaders(world.getWorldFolder().toPath());
+            RegionDelta.Manifest last = getLastBackup(world);
+            // Never backed up, every chunk is new
+            return now.changedChunks(last != null ? last : new RegionDelta.Manifest());
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot read region files of " + world.getName() + ": " + e.getMessage());
+            return -1;
+        } finally {
+            checkTime.observeSince(start);
+        }
+    }
+
+    private RegionDelta.Manifest getLastBackup(World world) {
+        RegionDelta.Manifest manifest = lastBackup.get(world);
+        if(manifest != null) return manifest;
+
+        File file = file(world);
+        if(!file.exists()) return null;
+        try(InputStream in = new FileInputStream(file)) {
+            manifest = RegionDelta.Manifest.read(in);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot read region manifest of " + world.getName() + ": " + e.getMessage());
+            return null;
+        }
+        lastBackup.put(world, manifest);
+        return manifest;
+    }
+
+    private File file(World world) {
+        return new File(folder, world.getUID().toString() + ".manifest");
+    }
+}
@@ -0,0 +1,171 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import tw.mayortw.dropup.util.LocalStorage;
+import tw.mayortw.dropup.util.StorageBackend;
+
+/*
+ * Tiered retention
+ * Every backup goes to a fast local tier, which keeps hourly snapshots.
+ * Only the first backup of each day or week is promoted to the main storage,
+ * which keeps daily and weekly snapshots.
+ */
+public class RetentionPolicy {
+
+    public static final String DATE_FORMAT = "yyyy-MM-dd-HH-mm-ss";
+
+    private List<Rule> rules = new ArrayList<>();
+    private StorageBackend localTier;
+
+    private RetentionPolicy(StorageBackend localTier) {
+        this.localTier = localTier;
+    }
+
+    /*
+     * Returns null if retention isn't enabled in the config
+     * worldContainer is where relative local_path is resolved from
+     */
+    public static RetentionPolicy fromConfig(ConfigurationSection config, Path worldContainer) {
+        ConfigurationSection section = config.getConfigurationSection("retention");
+        if(section == null || !section.getBoolean("enabled")) return null;
+
+        RetentionPolicy policy = new RetentionPolicy(new LocalStorage(
+                    worldContainer.resolve(section.getString("local_path", "dropup_snapshots"))));
+        policy.rules.add(new Rule(Period.HOUR, section.getInt("hourly", 24), true));
+        policy.rules.add(new Rule(Period.DAY, section.getInt("daily", 14), false));
+        policy.rules.add(new Rule(Period.WEEK, section.getInt("weekly", 8), false));
+        return policy;
+    }
+
+    public StorageBackend getLocalTier() {
+        return localTier;
+    }
+
+    /*
+     * Returns the backups to keep on a tier
+     * For each period, the first backup of each of the last count periods is kept
+     * The newest backup and names that aren't dates are always kept
+     */
+    public Set<String> keep(List<String> names, LocalDateTime now, boolean local) {
+        Set<String> keep = new HashSet<>();
+        List<String> dated = new ArrayList<>();
+
+        for(String name : names) {
+            if(parseTime(name) == null)
+                keep.add(name);
+            else
+                dated.add(name);
+        }
+
+        if(dated.isEmpty()) return keep;
+
+        // Oldest first
+        dated.sort(Comparator.comparing(RetentionPolicy::parseTime));
+        keep.add(dated.get(dated.size() - 1));
+
+        for(Rule rule : rules) {
+            if(rule.local != local || rule.count <= 0) continue;
+
+            LocalDateTime oldest = rule.period.start(now).minus(rule.count - 1, rule.period.unit);
+            Set<LocalDateTime> seen = new HashSet<>();
+
+            for(String name : dated) {
+                LocalDateTime bucket = rule.period.start(parseTime(name));
+                if(bucket.isBefore(oldest)) continue;
+                if(seen.add(bucket))
+                    keep.add(name);
+            }
+        }
+
+        return keep;
+    }
+
+    /*
+     * Should this new backup be uploaded to the main storage
+     * True if it's the first backup in a day or week that's kept there
+     */
+    public boolean shouldPromote(String name, List<String> remoteNames, LocalDateTime now) {
+        List<String> names = new ArrayList<>(remoteNames);
+        names.add(name);
+
+        LocalDateTime time = parseTime(name);
+        if(time == null) return false;
+
+        for(Rule rule : rules) {
+            if(rule.local || rule.count <= 0) continue;
+
+            LocalDateTime bucket = rule.period.start(time);
+            boolean taken = remoteNames.stream()
+                .map(RetentionPolicy::parseTime)
+                .anyMatch(t -> t != null && rule.period.start(t).equals(bucket));
+            if(!taken && keep(names, now, false).contains(name))
+                return true;
+        }
+
+        return false;
+    }
+
+    // Returns null if the name isn't a backup name
+    public static LocalDateTime parseTime(String name) {
+        int dot = name.indexOf('.');
+        try {
+            return LocalDateTime.parse(dot >= 0 ? name.substring(0, dot) : name,
+                    DateTimeFormatter.ofPattern(DATE_FORMAT));
+        } catch(DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static enum Period {
+        HOUR(ChronoUnit.HOURS),
+        DAY(ChronoUnit.DAYS),
+        WEEK(ChronoUnit.WEEKS);
+
+        final ChronoUnit unit;
+
+        Period(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        // Start of the period the time is in
+        LocalDateTime start(LocalDateTime time) {
+            switch(this) {
+                case HOUR:
+                    return time.truncatedTo(ChronoUnit.HOURS);
+                case DAY:
+                    return time.truncatedTo(ChronoUnit.DAYS);
+                default:
+                    return time.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            }
+        }
+    }
+
+    private static class Rule {
+        final Period period;
+        final int count;
+        final boolean local;
+
+        Rule(Period period, int count, boolean local) {
+            this.period = period;
+            this.count = count;
+            this.local = local;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.time.LocalTime;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/*
+ * Changes the upload speed with how busy the server is, checked every 5 seconds
+ *   Nobody online: empty_speed, no limit by default
+ *   Players online: from max_speed down to min_speed at full_players
+ *   TPS below low_tps: min_speed
+ *   In peak_hours: at most peak_speed, unless nobody is online
+ * Speeds are in kb/s, 0 or less means no limit
+ */
+public class SpeedController {
+
+    private static final long INTERVAL = 5 * 20; // in ticks
+
+    private Plugin plugin;
+    private WorldUploader uploader;
+    private TickMonitor ticks;
+    private BukkitTask task;
+
+    private int emptySpeed;
+    private int maxSpeed;
+    private int minSpeed;
+    private int fullPlayers;
+    private double lowTps;
+    private int peakSpeed;
+    private boolean[] peakHours = new boolean[24];
+
+    private int speed = Integer.MIN_VALUE; // not set yet
+
+    private SpeedController(Plugin plugin, WorldUploader uploader, TickMonitor ticks) {
+        this.plugin = plugin;
+        this.uploader = uploader;
+        this.ticks = ticks;
+    }
+
+    // Returns null if adaptive_speed isn't enabled in the config
+    public static SpeedController fromConfig(Plugin plugin, WorldUploader uploader, TickMonitor ticks) {
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("adaptive_speed");
+        if(section == null || !section.getBoolean("enabled")) return null;
+
+        SpeedController controller = new SpeedController(plugin, uploader, ticks);
+        controller.emptySpeed = section.getInt("empty_speed", -1);
+        controller.maxSpeed = section.getInt("max_speed", 4096);
+        controller.minSpeed = section.getInt("min_speed", 256);
+        controller.fullPlayers = Math.max(1, section.getInt("full_players", 20));
+        controller.lowTps = section.getDouble("low_tps", 18);
+        controller.peakSpeed = section.getInt("peak_speed", 512);
+
+        // Like "18-23", both ends included. Can go past midnight like "22-2"
+        for(String range : section.getStringList("peak_hours")) {
+            try {
+                String[] ends = range.split("-");
+                int from = Integer.parseInt(ends[0].trim());
+                int to = Integer.parseInt(ends[ends.length - 1].trim());
+                if(from < 0 || from > 23 || to < 0 || to > 23)
+                    throw new NumberFormatException();
+                for(int hour = from; ; hour = (hour + 1) % 24) {
+                    controller.peakHours[hour] = true;
+                    if(hour == to) break;
+                }
+            } catch(NumberFormatException e) {
+                plugin.getLogger().warning("Invalid peak hours: " + range);
+            }
+        }
+
+        return controller;
+    }
+
+    public void start() {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::update, 0, INTERVAL);
+    }
+
+    public void stop() {
+        if(task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    // Speed set last time, in kb/s
+    public int getSpeed() {
+        return speed;
+    }
+
+    private void update() {
+        int next = computeSpeed(Bukkit.getOnlinePlayers().size(), ticks.getTps(), LocalTime.now().getHour());
+        if(next != speed) {
+            speed = next;
+            uploader.setUploadSpeed(next);
+        }
+    }
+
+    private int computeSpeed(int players, double tps, int hour) {
+        if(players == 0) return emptySpeed;
+
+        int next;
+        if(tps < lowTps) {
+            next = minSpeed;
+        } else {
+            double load = Math.min(1, (double) players / fullPlayers);
+            next = limited(maxSpeed) && limited(minSpeed)
+                ? (int) Math.round(maxSpeed - (maxSpeed - minSpeed) * load)
+                : load >= 1 ? minSpeed : maxSpeed;
+        }
+
+        if(peakHours[hour] && limited(peakSpeed) && (!limited(next) || next > peakSpeed))
+            next = peakSpeed;
+        return next;
+    }
+
+    private static boolean limited(int speed) {
+        return speed > 0;
+    }
+}
@@ -0,0 +1,87 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.lang.reflect.Method;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import tw.mayortw.dropup.util.Metrics;
+
+/*
+ * Measures how the server is keeping up
+ * TPS is from the time between runs of a task that runs every tick
+ * MSPT is only known on servers that report it (Paper), since a tick
+ * that finishes early still waits for the next 50ms
+ */
+public class TickMonitor {
+
+    private static final int SAMPLES = 100; // ticks to average over, 5 seconds at 20 TPS
+
+    private Plugin plugin;
+    private BukkitTask task;
+    private Method averageTickTime;
+
+    private long[] tickTimes = new long[SAMPLES];
+    private int ticks = 0;
+    private volatile double tps = 20;
+    private volatile double mspt = -1;
+
+    public TickMonitor(Plugin plugin) {
+        this.plugin = plugin;
+
+        Metrics.gauge("dropup_server_tps", "Server ticks per second, averaged over 5 seconds", () -> tps);
+        Metrics.gauge("dropup_server_mspt", "Average milliseconds per tick reported by the server, -1 if unknown", () -> mspt);
+    }
+
+    public void start() {
+        try {
+            averageTickTime = Bukkit.getServer().getClass().getMethod("getAverageTickTime");
+        } catch(NoSuchMethodException e) {
+            averageTickTime = null; // Not Paper
+        }
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    public void stop() {
+        if(task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    public double getTps() {
+        return tps;
+    }
+
+    // -1 if the server doesn't report it
+    public double getMspt() {
+        return mspt;
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        int index = ticks % SAMPLES;
+        int count = Math.min(ticks, SAMPLES);
+        if(count > 0) {
+            // Oldest sample is the one about to be replaced, or the first one
+            long oldest = tickTimes[ticks >= SAMPLES ? index : 0];
+            tps = Math.min(20, count * 1e9 / (now - oldest));
+        }
+        tickTimes[index] = now;
+        ticks++;
+
+        if(averageTickTime != null && ticks % 20 == 0) {
+            try {
+                mspt = ((Number) averageTickTime.invoke(Bukkit.getServer())).doubleValue();
+            } catch(Exception e) {
+                plugin.getLogger().warning("Cannot get tick time: " + e.getMessage());
+                averageTickTime = null;
+                mspt = -1;
+            }
+        }
+    }
+}
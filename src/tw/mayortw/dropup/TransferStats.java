@@ -0,0 +1,385 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.bukkit.Bukkit;
+import org.bukkit.boss.BarColor;
+import org.bukkit.boss.BarStyle;
+import org.bukkit.boss.BossBar;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.World;
+
+/*
+ * Keeps track of bytes, speed and time of each stage of uploads and downloads
+ * Shows them on boss bars and dumps them to stats.json
+ */
+public class TransferStats {
+
+    private static final int HISTORY_SIZE = 20;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private Plugin plugin;
+    private List<Job> active = new CopyOnWriteArrayList<>();
+    private Map<String, Deque<Job>> history = new HashMap<>();
+    private Map<Job, BossBar> bossBars = new HashMap<>();
+    private BukkitTask updateTask;
+
+    public TransferStats(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public void start() {
+        if(updateTask == null)
+            updateTask = Bukkit.getScheduler().runTaskTimer(plugin, this::update, 20, 20);
+    }
+
+    public void stop() {
+        if(updateTask != null) {
+            updateTask.cancel();
+            updateTask = null;
+        }
+        for(BossBar bar : bossBars.values())
+            bar.removeAll();
+        bossBars.clear();
+    }
+
+    public Job startJob(World world, String type) {
+        Job job = new Job(world.getName(), type);
+        active.add(job);
+        return job;
+    }
+
+    public List<Job> getActiveJobs() {
+        return new ArrayList<>(active);
+    }
+
+    public synchronized List<Job> getHistory(String worldName) {
+        Deque<Job> jobs = history.get(worldName);
+        if(jobs == null) return new ArrayList<>();
+        return new ArrayList<>(jobs);
+    }
+
+    // Latest finished jobs of all worlds, newest first
+    public synchronized List<Job> getRecentJobs(int max) {
+        List<Job> jobs = new ArrayList<>();
+        for(Deque<Job> worldJobs : history.values())
+            jobs.addAll(worldJobs);
+        jobs.sort((a, b) -> Long.compare(b.finishTime, a.finishTime));
+        return jobs.subList(0, Math.min(max, jobs.size()));
+    }
+
+    private void finishJob(Job job) {
+        active.remove(job);
+        synchronized(this) {
+            Deque<Job> jobs = history.computeIfAbsent(job.worldName, k -> new ArrayDeque<>());
+            jobs.addFirst(job);
+            while(jobs.size() > HISTORY_SIZE)
+                jobs.removeLast();
+        }
+        dump();
+    }
+
+    // Runs every second in main thread
+    private void update() {
+        for(Job job : active)
+            job.sample();
+
+        if(!plugin.getConfig().getBoolean("stats_bossbar", true)) {
+            for(BossBar bar : bossBars.values())
+                bar.removeAll();
+            bossBars.clear();
+            return;
+        }
+
+        // Remove bars of finished jobs
+        bossBars.entrySet().removeIf(e -> {
+            if(!active.contains(e.getKey())) {
+                e.getValue().removeAll();
+                return true;
+            }
+            return false;
+        });
+
+        for(Job job : active) {
+            BossBar bar = bossBars.computeIfAbsent(job, j -> Bukkit.createBossBar("",
+                        j.type.equals("restore") ? BarColor.BLUE : BarColor.GREEN, BarStyle.SOLID));
+            bar.setTitle(job.toString());
+            double progress = job.getProgress();
+            bar.setProgress(progress >= 0 ? progress : 0);
+
+            for(Player player : Bukkit.getOnlinePlayers()) {
+                if(player.hasPermission("dropup.list")) {
+                    if(!bar.getPlayers().contains(player))
+                        bar.addPlayer(player);
+                } else {
+                    bar.removePlayer(player);
+                }
+            }
+        }
+    }
+
+    // Write current and past jobs to stats.json
+    public void dump() {
+        JsonObject json = new JsonObject();
+
+        JsonArray activeJson = new JsonArray();
+        for(Job job : active)
+            activeJson.add(job.toJson());
+        json.add("active", activeJson);
+
+        JsonObject historyJson = new JsonObject();
+        synchronized(this) {
+            for(Map.Entry<String, Deque<Job>> entry : history.entrySet()) {
+                JsonArray jobs = new JsonArray();
+                for(Job job : entry.getValue())
+                    jobs.add(job.toJson());
+                historyJson.add(entry.getKey(), jobs);
+            }
+        }
+        json.add("history", historyJson);
+
+        File file = new File(plugin.getDataFolder(), "stats.json");
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(json, out);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot write stats: " + e.getMessage());
+        }
+    }
+
+    static String formatBytes(double bytes) {
+        if(bytes < 1024) return String.format("%.0fB", bytes);
+        if(bytes < 1024 * 1024) return String.format("%.1fKB", bytes / 1024);
+        if(bytes < 1024 * 1024 * 1024) return String.format("%.1fMB", bytes / 1024 / 1024);
+        return String.format("%.2fGB", bytes / 1024 / 1024 / 1024);
+    }
+
+    static String formatTime(long millis) {
+        if(millis < 1000) return millis + "ms";
+        long secs = millis / 1000;
+        if(secs < 60) return secs + "s";
+        if(secs < 3600) return String.format("%dm%02ds", secs / 60, secs % 60);
+        return String.format("%dh%02dm", secs / 3600, secs / 60 % 60);
+    }
+
+    /*
+     * A single upload or download
+     * Stages are timed one after another, bytes are counted by the tracked stream
+     */
+    public class Job {
+        private final String worldName;
+        private final String type;
+        private final long startTime = System.currentTimeMillis();
+        private long finishTime;
+        private boolean success;
+
+        private final LinkedHashMap<String, Long> stageTimes = new LinkedHashMap<>();
+        private String stage;
+        private long stageStart;
+
+        private volatile LongSupplier bytes;
+        private volatile long total = -1;
+        private long transferStart;
+        private long transferEnd;
+        private long transferred;
+
+        private long lastSampleTime;
+        private long lastSampleBytes;
+        private double rate;
+
+        Job(String worldName, String type) {
+            this.worldName = worldName;
+            this.type = type;
+        }
+
+        public String getWorldName() {
+            return worldName;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public synchronized String getStage() {
+            return stage;
+        }
+
+        // End the current stage and start a new one
+        public synchronized void stage(String name) {
+            long now = System.currentTimeMillis();
+            if(stage != null)
+                stageTimes.merge(stage, now - stageStart, Long::sum);
+            stage = name;
+            stageStart = now;
+        }
+
+        public synchronized Map<String, Long> getStageTimes() {
+            LinkedHashMap<String, Long> times = new LinkedHashMap<>(stageTimes);
+            if(stage != null && finishTime == 0)
+                times.merge(stage, System.currentTimeMillis() - stageStart, Long::sum);
+            return times;
+        }
+
+        /*
+         * Count bytes from bytes supplier, total is -1 if unknown
+         */
+        public synchronized void track(LongSupplier bytes, long total) {
+            this.bytes = bytes;
+            this.total = total;
+            this.transferStart = System.currentTimeMillis();
+            this.lastSampleTime = transferStart;
+            this.lastSampleBytes = 0;
+            this.rate = 0;
+        }
+
+        public void finish(boolean success) {
+            synchronized(this) {
+                if(finishTime != 0) return;
+                stage(null);
+                this.success = success;
+                this.finishTime = System.currentTimeMillis();
+                if(bytes != null) {
+                    transferred = bytes.getAsLong();
+                    transferEnd = finishTime;
+                    bytes = null;
+                }
+            }
+            // Not holding the lock here, dump locks the other jobs
+            finishJob(this);
+        }
+
+        public long getBytes() {
+            LongSupplier bytes = this.bytes;
+            return bytes != null ? bytes.getAsLong() : transferred;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        // Between 0 and 1, or -1 if unknown
+        public double getProgress() {
+            if(total <= 0) return -1;
+            return Math.min(1, (double) getBytes() / total);
+        }
+
+        // Take a speed sample, called every second
+        synchronized void sample() {
+            if(bytes == null) return;
+            long now = System.currentTimeMillis();
+            long current = bytes.getAsLong();
+            if(now > lastSampleTime) {
+                double sample = (double) (current - lastSampleBytes) * 1000 / (now - lastSampleTime);
+                rate = rate == 0 ? sample : rate * (1 - RATE_SMOOTHING) + sample * RATE_SMOOTHING;
+            }
+            lastSampleTime = now;
+            lastSampleBytes = current;
+        }
+
+        // Bytes per second of the last few seconds
+        public synchronized double getRate() {
+            return bytes != null ? rate : 0;
+        }
+
+        // Bytes per second since the transfer started
+        public synchronized double getAverageRate() {
+            if(transferStart == 0) return 0;
+            long end = bytes != null ? System.currentTimeMillis() : transferEnd;
+            if(end <= transferStart) return 0;
+            return (double) getBytes() * 1000 / (end - transferStart);
+        }
+
+        // Estimated millis left, or -1 if unknown
+        public long getEta() {
+            double rate = getRate();
+            if(total <= 0 || rate <= 0) return -1;
+            return (long) ((total - getBytes()) / rate * 1000);
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public long getFinishTime() {
+            return finishTime;
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("world", worldName);
+            json.addProperty("type", type);
+            json.addProperty("start", Instant.ofEpochMilli(startTime).atZone(ZoneId.systemDefault())
+                    .toLocalDateTime().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+            if(finishTime != 0) {
+                json.addProperty("duration_ms", finishTime - startTime);
+                json.addProperty("success", success);
+            } else {
+                json.addProperty("stage", getStage());
+            }
+            json.addProperty("bytes", getBytes());
+            json.addProperty("total_bytes", total);
+            json.addProperty("average_rate", (long) getAverageRate());
+            if(finishTime == 0)
+                json.addProperty("rate", (long) getRate());
+
+            JsonObject stages = new JsonObject();
+            for(Map.Entry<String, Long> stage : getStageTimes().entrySet())
+                stages.addProperty(stage.getKey(), stage.getValue());
+            json.add("stages_ms", stages);
+            return json;
+        }
+
+        // One line summary, used for status and boss bar
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder(worldName).append(' ');
+
+            if(finishTime == 0) {
+                str.append(getStage());
+                if(bytes != null) {
+                    str.append(' ').append(formatBytes(getBytes()));
+                    if(total > 0)
+                        str.append('/').append(formatBytes(total));
+                    str.append(' ').append(formatBytes(getRate())).append("/s");
+                    long eta = getEta();
+                    if(eta >= 0)
+                        str.append(" ETA ").append(formatTime(eta));
+                }
+            } else {
+                str.append(success ? "OK" : "FAILED");
+                if(transferred > 0)
+                    str.append(' ').append(formatBytes(transferred))
+                        .append(' ').append(formatBytes(getAverageRate())).append("/s");
+                for(Map.Entry<String, Long> stage : getStageTimes().entrySet())
+                    str.append(' ').append(stage.getKey()).append('=').append(formatTime(stage.getValue()));
+            }
+
+            return str.toString();
+        }
+    }
+}
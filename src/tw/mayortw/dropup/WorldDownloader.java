@@ -3,16 +3,27 @@ package tw.mayortw.dropup;
  * Written by R26
  */
 
-import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
@@ -24,25 +35,65 @@ import tw.mayortw.dropup.util.*;
 
 public class WorldDownloader {
 
+    private static final Metrics.Histogram downloadTime = Metrics.timer("dropup_download_seconds", "Time spent downloading and extracting a backup");
+    private static final Metrics.Counter downloadBytes = Metrics.counter("dropup_download_bytes_total", "Bytes downloaded");
+    private static final Metrics.Histogram swapTime = Metrics.timer("dropup_swap_seconds", "Time restored worlds were unloaded");
+    private static final Metrics.Counter restores = Metrics.counter("dropup_restores_total", "Finished restores");
+    private static final Metrics.Counter restoreFailures = Metrics.counter("dropup_restore_failures_total", "Failed restores");
+    private static final Metrics.Histogram listTime = Profiler.section("drive_list", "Time the main thread spent listing backups");
+
+    // Folders in a dimension that have r.X.Z.mca files
+    private static final String[] REGION_FOLDERS = {"region", "poi", "entities"};
+    // Something's wrong if a delta backup needs more than this many backups
+    private static final int MAX_CHAIN = 1000;
+
     private Plugin plugin;
-    private GoogleDriveUtil drive;
+    private StorageBackend storage;
+    private RetentionPolicy retention;
+    private TransferStats stats;
+    private ExecutorService io;
     private MVWorldManager mvWorldManager;
     private Object lock = new Object();
 
-    private DownloadInfo downloading = null;
+    private ConcurrentHashMap<World, DownloadInfo> downloading = new ConcurrentHashMap<>();
     private int downloadSpeed;
 
-    public WorldDownloader(Plugin plugin, GoogleDriveUtil drive, MVWorldManager mvWorldManager) {
+    // retention can be null if there's no local tier
+    public WorldDownloader(Plugin plugin, StorageBackend storage, RetentionPolicy retention, TransferStats stats,
+            ExecutorService io, MVWorldManager mvWorldManager) {
         this.plugin = plugin;
-        this.drive = drive;
+        this.storage = storage;
+        this.retention = retention;
+        this.stats = stats;
+        this.io = io;
         this.mvWorldManager = mvWorldManager;
         this.downloadSpeed = plugin.getConfig().getInt("download_speed") * 1024; // kb to byte
+
+        Metrics.gauge("dropup_restores_running", "Worlds being restored", () -> downloading.size());
     }
 
+    /*
+     * Sets max download speed
+     * The speed is shared by all the running downloads
+     */
     public void setDownloadSpeed(int speed) {
         this.downloadSpeed = speed * 1024; // kb to byte
-        if(downloading != null && downloading.stream != null)
-            downloading.stream.setRate(downloadSpeed);
+        updateStreamRates();
+    }
+
+    // Split the download speed between the current streams
+    private synchronized void updateStreamRates() {
+        List<LimitedInputStream> streams = new ArrayList<>();
+        for(DownloadInfo info : downloading.values()) {
+            if(info.stream != null && !info.downloaded)
+                streams.add(info.stream);
+        }
+
+        if(streams.isEmpty()) return;
+
+        int rate = downloadSpeed <= 0 ? downloadSpeed : Math.max(1, downloadSpeed / streams.size());
+        for(LimitedInputStream stream : streams)
+            stream.setRate(rate);
     }
 
     public void removeDownloadDir() {
@@ -62,18 +113,20 @@ public class WorldDownloader {
     public void stopAllDownloads() {
         plugin.getLogger().info("Stopping download");
 
-        // Close the stream and wait
-        if(downloading != null && downloading.stream != null) {
-            try {
-                downloading.stream.close();
-            } catch(IOException e) {
-                plugin.getLogger().warning("Cannot close input stream");
-                e.printStackTrace();
+        // Close the streams and wait
+        for(DownloadInfo info : downloading.values()) {
+            if(info.stream != null) {
+                try {
+                    info.stream.close();
+                } catch(IOException e) {
+                    plugin.getLogger().warning("Cannot close input stream");
+                    e.printStackTrace();
+                }
             }
         }
 
         synchronized(lock) {
-            while(downloading != null) {
+            while(!downloading.isEmpty()) {
                 try {
                     lock.wait();
                 } catch(InterruptedException e) {}
@@ -81,112 +134,538 @@ public class WorldDownloader {
         }
     }
 
-    public World getCurrentWorld() {
-        if(downloading != null)
-            return downloading.world;
-        return null;
+    public boolean isRestoring(World world) {
+        return downloading.containsKey(world);
+    }
+
+    public World[] getRestoringWorlds() {
+        return downloading.keySet().toArray(new World[0]);
     }
 
     public List<String> listBackups(World world) {
         String drivePath = plugin.getConfig().getString("drive_path") + "/" + world.getUID().toString();
+        long start = System.nanoTime();
         try {
-            return drive.listFileNames(drivePath);
-        } catch(GoogleDriveUtil.GoogleDriveException e) {
+            // Backups on both tiers
+            Set<String> names = new LinkedHashSet<>(storage.listFileNames(drivePath));
+            if(retention != null)
+                names.addAll(retention.getLocalTier().listFileNames(drivePath));
+            names.removeIf(name -> !WorldUploader.isBackup(name));
+            return new ArrayList<>(names);
+        } catch(StorageBackend.StorageException e) {
             plugin.getLogger().warning("Cannot get backup list: " + e.getMessage());
             return Collections.emptyList();
+        } finally {
+            // Only count the time it blocks the server
+            if(Bukkit.isPrimaryThread())
+                listTime.observeSince(start);
         }
     }
 
+    /*
+     * Files in a backup without downloading it
+     * Blocks for a few requests, don't call from main thread
+     */
+    public List<RemoteZip.Entry> listBackupContents(World world, String backupFile) throws StorageBackend.StorageException, IOException {
+        String path = String.format("%s/%s/%s",
+                plugin.getConfig().getString("drive_path"),
+                world.getUID().toString(), backupFile);
+        return openBackup(path).getEntries();
+    }
+
     // backupFile is the zip file name on the drive
     public void restoreWorld(World world, String backupFile) {
+        restoreWorlds(Collections.singletonMap(world, backupFile));
+    }
+
+    /*
+     * Restore multiple worlds together
+     * All the backups are downloaded at the same time, and the worlds are
+     * only unloaded and swapped when every one of them is ready
+     */
+    public void restoreWorlds(Map<World, String> backups) {
         if(mvWorldManager == null) {
             plugin.getLogger().warning("Can't restore world without MultiVerse");
             return;
         }
 
-        if(downloading != null) return;
+        List<DownloadInfo> infos = new ArrayList<>();
+        synchronized(lock) {
+            for(World world : backups.keySet()) {
+                if(downloading.containsKey(world)) return;
+            }
 
-        // Unload the world first
-        if(mvWorldManager.unloadWorld(world.getName(), true)) {
-            Bukkit.broadcastMessage(String.format("[§e%s] §f已卸載世界 §a%s§f，回復完成前請不要加載", plugin.getName(), world.getName()));
-        } else {
-            Bukkit.broadcastMessage(String.format("[§e%s] §f無法卸載世界 §a%s", plugin.getName(), world.getName()));
-            return;
+            for(Map.Entry<World, String> backup : backups.entrySet()) {
+                DownloadInfo info = new DownloadInfo(backup.getKey(), backup.getValue());
+                downloading.put(info.world, info);
+                infos.add(info);
+            }
         }
 
-        String path = String.format("%s/%s/%s",
-                plugin.getConfig().getString("drive_path"),
-                world.getUID().toString(), backupFile);
+        // Run in async
+        io.execute(() -> {
+            try {
+                // Download all of them while the worlds are still loaded
+                List<CompletableFuture<Void>> stages = new ArrayList<>();
+                for(DownloadInfo info : infos) {
+                    CompletableFuture<Void> stage = new CompletableFuture<>();
+                    io.execute(() -> {
+                        try {
+                            stageWorld(info);
+                            stage.complete(null);
+                        } catch(Exception e) {
+                            stage.completeExceptionally(e);
+                        }
+                    });
+                    stages.add(stage);
+                }
 
-        downloading = new DownloadInfo(world);
+                boolean staged = true;
+                for(int i = 0; i < stages.size(); i++) {
+                    try {
+                        stages.get(i).get();
+                    } catch(ExecutionException e) {
+                        staged = false;
+                        broadcastFromMain(String.format("[§e%s] §f回復錯誤： §a%s §c%s", plugin.getName(), infos.get(i).worldName, e.getCause().getMessage()));
+                    }
+                }
 
-        // Run in async
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            broadcastFromMain(String.format("[§e%s] §f正在回復 §a%s", plugin.getName(), world.getName()));
+                if(staged)
+                    swapWorlds(infos);
 
-            // Get the destinations
-            File worldDir = world.getWorldFolder();
-            File dloadDir = worldDir.toPath()
-                .resolveSibling(plugin.getConfig().getString("download_path"))
-                .resolve(world.getUID().toString())
-                .toFile();
+            } catch(InterruptedException | ExecutionException e) {
+                plugin.getLogger().warning("Restore interrupted: " + e);
+            } finally {
 
-            try {
-                // Prepare download destinations
-                if(dloadDir.exists()) {
-                    if(dloadDir.isDirectory())
-                        FileUtil.deleteDirectory(dloadDir.toPath());
+                for(DownloadInfo info : infos) {
+                    info.job.finish(info.restored);
+                    if(info.restored)
+                        restores.inc();
                     else
-                        dloadDir.delete();
+                        restoreFailures.inc();
+                    try {
+                        deleteIfExists(info.dloadDir);
+                    } catch(IOException e) {
+                        plugin.getLogger().warning("Cannot delete world download folder: " + e);
+                    }
+                    deleteOld(info);
                 }
-                dloadDir.mkdirs();
 
-                // Download and unzip
-                try(InputStream httpStream = drive.download(path)) {
-                    downloading.stream = new LimitedInputStream(httpStream, downloadSpeed); // Save the stream so the speed can be changed later
-                    FileUtil.unzipFiles(downloading.stream, dloadDir.toPath());
+                synchronized(lock) {
+                    for(DownloadInfo info : infos)
+                        downloading.remove(info.world);
+                    lock.notifyAll();
                 }
+            }
+        });
+    }
 
-                // When success, delete old world folder and rename new one to old
-                FileUtil.deleteDirectory(worldDir);
-                if(!dloadDir.renameTo(worldDir)) {
-                    // Cannot rename, have to copy it
-                    FileUtil.copyDirectory(dloadDir, worldDir);
-                }
+    /*
+     * Restore only some region files of a world
+     * Only those entries are downloaded, and the world is unloaded just for
+     * the time it takes to move the files in
+     * regions are names like r.1.-2.mca
+     */
+    public void restoreRegions(World world, String backupFile, Collection<String> regions) {
+        if(mvWorldManager == null) {
+            plugin.getLogger().warning("Can't restore world without MultiVerse");
+            return;
+        }
 
-                broadcastFromMain(String.format("[§e%s] §f已下載 §a%s", plugin.getName(), path));
+        DownloadInfo info;
+        synchronized(lock) {
+            if(downloading.containsKey(world)) return;
+            info = new DownloadInfo(world, backupFile);
+            downloading.put(world, info);
+        }
+        String dimension = dimensionFolder(world.getEnvironment());
 
-            } catch(IOException | GoogleDriveUtil.GoogleDriveException e) {
-                broadcastFromMain(String.format("[§e%s] §f回復錯誤： §c%s", plugin.getName(), e.getMessage()));
-            } finally {
+        io.execute(() -> {
+            try {
+                broadcastFromMain(String.format("[§e%s] §f正在下載 §a%s §f的 %d 個區域", plugin.getName(), info.worldName, regions.size()));
+                deleteIfExists(info.dloadDir);
+                deleteIfExists(info.oldDir);
+                Files.createDirectories(info.dloadDir);
+
+                // Get the region, poi and entity files of each region
+                List<String> files = new ArrayList<>();
+                long total = 0;
+                long start = System.nanoTime();
+                try {
+                    info.job.stage("download");
+                    // Delta backups are rebuilt from the full backup up
+                    List<RemoteZip> zips = new ArrayList<>();
+                    for(Source source : backupChain(info.path))
+                        zips.add(source.open());
+
+                    // A backup without the folder tells nothing about its files. It was
+                    // filtered out or made before the server had it
+                    Map<String, List<RemoteZip>> hasFolder = new HashMap<>();
+                    for(String folder : REGION_FOLDERS) {
+                        List<RemoteZip> having = new ArrayList<>();
+                        for(RemoteZip zip : zips) {
+                            if(zip.hasFolder(dimension + folder + "/"))
+                                having.add(zip);
+                        }
+                        hasFolder.put(folder, having);
+                    }
 
-                // Load the world
+                    Path deltaFile = info.dloadDir.resolve("region.delta");
+                    for(String region : regions) {
+                        for(String folder : REGION_FOLDERS) {
+                            // The live files are left alone
+                            if(hasFolder.get(folder).isEmpty()) continue;
+
+                            String name = dimension + folder + "/" + region;
+                            Path file = info.dloadDir.resolve(name);
+                            for(RemoteZip zip : hasFolder.get(folder)) {
+                                RemoteZip.Entry entry = zip.getEntry(name);
+                                RemoteZip.Entry deltaEntry = zip.getEntry(name + RegionDelta.DELTA_SUFFIX);
+                                if(entry != null) {
+                                    zip.extract(entry, file);
+                                    total += entry.compressedSize;
+                                } else if(deltaEntry != null) {
+                                    zip.extract(deltaEntry, deltaFile);
+                                    total += deltaEntry.compressedSize;
+                                    Path rebuilt = file.resolveSibling(region + ".dropup-tmp");
+                                    try(InputStream in = Files.newInputStream(deltaFile)) {
+                                        RegionDelta.applyDelta(in, file, rebuilt);
+                                    }
+                                    Files.move(rebuilt, file, StandardCopyOption.REPLACE_EXISTING);
+                                } else {
+                                    Files.deleteIfExists(file);
+                                }
+                            }
+                            Files.deleteIfExists(deltaFile);
+                            // Not in a backup that has the folder means it wasn't generated yet, so it's removed
+                            files.add(name);
+                        }
+                    }
+                } finally {
+                    downloadTime.observeSince(start);
+                    downloadBytes.inc(total);
+                }
+
+                // Swap the files while the world is unloaded
+                long swapStart = System.nanoTime();
+                info.job.stage("swap");
+                if(!callSync(() -> mvWorldManager.unloadWorld(info.worldName, true))) {
+                    broadcastFromMain(String.format("[§e%s] §f無法卸載世界 §a%s", plugin.getName(), info.worldName));
+                    return;
+                }
                 try {
-                    Bukkit.getScheduler().callSyncMethod(plugin, () -> {
-                        if(mvWorldManager.loadWorld(world.getName()))
-                            Bukkit.broadcastMessage(String.format("[§e%s] §f已回復 §a%s", plugin.getName(), world.getName()));
+                    swapFiles(files, info);
+                    info.restored = true;
+                } catch(IOException e) {
+                    broadcastFromMain(String.format("[§e%s] §f回復錯誤： §c%s", plugin.getName(), e.getMessage()));
+                } finally {
+                    callSync(() -> {
+                        if(mvWorldManager.loadWorld(info.worldName))
+                            Bukkit.broadcastMessage(String.format("[§e%s] §f已回復 §a%s §f的 %d 個區域", plugin.getName(), info.worldName, regions.size()));
                         else
-                            Bukkit.broadcastMessage(String.format("[§e%s] §f無法載入世界 §a%s", plugin.getName(), world.getName()));
+                            Bukkit.broadcastMessage(String.format("[§e%s] §f無法載入世界 §a%s", plugin.getName(), info.worldName));
                         return null;
-                    }).get();
-                } catch(InterruptedException | ExecutionException e) {}
+                    });
+                    swapTime.observeSince(swapStart);
+                }
+
+            } catch(IOException | StorageBackend.StorageException e) {
+                broadcastFromMain(String.format("[§e%s] §f回復錯誤： §a%s §c%s", plugin.getName(), info.worldName, e.getMessage()));
+            } catch(InterruptedException | ExecutionException e) {
+                plugin.getLogger().warning("Restore interrupted: " + e);
+            } finally {
+                info.job.finish(info.restored);
+                if(info.restored)
+                    restores.inc();
+                else
+                    restoreFailures.inc();
+                try {
+                    deleteIfExists(info.dloadDir);
+                } catch(IOException e) {
+                    plugin.getLogger().warning("Cannot delete world download folder: " + e);
+                }
+                deleteOld(info);
+
+                synchronized(lock) {
+                    downloading.remove(info.world);
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    // Where region files are in the world folder
+    public static String dimensionFolder(World.Environment environment) {
+        switch(environment) {
+            case NETHER:
+                return "DIM-1/";
+            case THE_END:
+                return "DIM1/";
+            default:
+                return "";
+        }
+    }
+
+    // Find a backup, from the local tier if it has it
+    private Source findBackup(String path) throws StorageBackend.StorageException, IOException {
+        if(retention != null) {
+            StorageBackend.FileInfo fileInfo = retention.getLocalTier().getFileInfo(path);
+            if(fileInfo != null)
+                return new Source(retention.getLocalTier(), path, fileInfo);
+        }
+        StorageBackend.FileInfo fileInfo = storage.getFileInfo(path);
+        if(fileInfo == null)
+            throw new IOException("找不到備份 " + path.substring(path.lastIndexOf('/') + 1));
+        return new Source(storage, path, fileInfo);
+    }
 
-                if(dloadDir.exists()) {
+    // Backups needed to restore this one, the full backup first and this one last
+    private List<Source> backupChain(String path) throws StorageBackend.StorageException, IOException {
+        LinkedList<Source> chain = new LinkedList<>();
+        String dir = path.substring(0, path.lastIndexOf('/') + 1);
+        while(path != null) {
+            if(chain.size() > MAX_CHAIN)
+                throw new IOException("差異備份鏈太長");
+            Source source = findBackup(path);
+            chain.addFirst(source);
+            String base = source.info.properties.get(RegionDelta.BASE_PROPERTY);
+            path = base != null ? dir + base : null;
+        }
+        return chain;
+    }
+
+    private RemoteZip openBackup(String path) throws StorageBackend.StorageException, IOException {
+        return findBackup(path).open();
+    }
+
+    /*
+     * Replace the files in worldDir with the ones in dloadDir
+     * Files not in dloadDir are removed. Old files are moved to oldDir and put
+     * back if anything fails
+     */
+    private void swapFiles(List<String> files, DownloadInfo info) throws IOException {
+        List<String> moved = new ArrayList<>();
+        List<String> placed = new ArrayList<>();
+        try {
+            for(String file : files) {
+                Path current = info.worldDir.resolve(file);
+                if(Files.exists(current)) {
+                    Files.createDirectories(info.oldDir.resolve(file).getParent());
+                    info.oldAside = true;
+                    Files.move(current, info.oldDir.resolve(file), StandardCopyOption.ATOMIC_MOVE);
+                    moved.add(file);
+                }
+                Path restored = info.dloadDir.resolve(file);
+                if(Files.exists(restored)) {
+                    Files.createDirectories(current.getParent());
+                    Files.move(restored, current, StandardCopyOption.ATOMIC_MOVE);
+                    placed.add(file);
+                }
+            }
+        } catch(IOException e) {
+            try {
+                for(String file : placed)
+                    Files.deleteIfExists(info.worldDir.resolve(file));
+                for(String file : moved)
+                    Files.move(info.oldDir.resolve(file), info.worldDir.resolve(file), StandardCopyOption.ATOMIC_MOVE);
+                info.oldAside = false;
+            } catch(IOException e1) {
+                e.addSuppressed(e1);
+            }
+            throw e;
+        }
+    }
+
+    // Download and extract a world next to the world folder
+    private void stageWorld(DownloadInfo info) throws IOException, StorageBackend.StorageException {
+        broadcastFromMain(String.format("[§e%s] §f正在下載 §a%s", plugin.getName(), info.worldName));
+
+        // Prepare download destinations
+        deleteIfExists(info.dloadDir);
+        deleteIfExists(info.oldDir);
+        Files.createDirectories(info.dloadDir);
+
+        long start = System.nanoTime();
+        try {
+            info.job.stage("download");
+
+            // Delta backups are unzipped over their base
+            List<Source> chain = backupChain(info.path);
+            for(int i = 0; i < chain.size(); i++) {
+                Source source = chain.get(i);
+
+                // Download and unzip, hashing the zip on the way
+                String checksum = source.info.properties.get(FileUtil.CHECKSUM_PROPERTY);
+                MessageDigest digest = FileUtil.newDigest();
+                LimitedInputStream stream = null;
+                try(InputStream httpStream = source.tier.download(source.path)) {
+                    stream = info.stream = new LimitedInputStream(new DigestInputStream(httpStream, digest), downloadSpeed); // Save the stream so the speed can be changed later
+                    info.job.track(info.stream::getTransferred, source.info.size);
+                    updateStreamRates();
+                    if(i == 0)
+                        FileUtil.unzipFiles(info.stream, info.dloadDir);
+                    else
+                        RegionDelta.unzipDelta(info.stream, info.dloadDir);
+                    // The zip reader stops before the central directory
+                    FileUtil.drain(info.stream);
+                } finally {
+                    if(stream != null)
+                        downloadBytes.inc(stream.getTransferred());
+                }
+
+                // Check it before the old world is touched
+                if(checksum == null) {
+                    plugin.getLogger().info(source.path + " has no checksum, skipping verification");
+                } else if(!checksum.equalsIgnoreCase(FileUtil.toHex(digest.digest()))) {
+                    throw new IOException("備份檔案校驗碼不符");
+                }
+            }
+        } finally {
+            // Give the bandwidth to the others
+            info.downloaded = true;
+            updateStreamRates();
+
+            downloadTime.observeSince(start);
+        }
+
+        verifyWorld(info.dloadDir);
+        broadcastFromMain(String.format("[§e%s] §f已下載 §a%s", plugin.getName(), info.path));
+    }
+
+    // Only unload the worlds when all the new ones are ready
+    private void swapWorlds(List<DownloadInfo> infos) throws InterruptedException, ExecutionException {
+        List<DownloadInfo> unloaded = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            boolean allUnloaded = callSync(() -> {
+                for(DownloadInfo info : infos) {
+                    if(!mvWorldManager.unloadWorld(info.worldName, true)) {
+                        Bukkit.broadcastMessage(String.format("[§e%s] §f無法卸載世界 §a%s", plugin.getName(), info.worldName));
+                        return false;
+                    }
+                    unloaded.add(info);
+                }
+                return true;
+            });
+
+            if(!allUnloaded) return;
+
+            List<DownloadInfo> swapped = new ArrayList<>();
+            try {
+                for(DownloadInfo info : infos) {
+                    info.job.stage("swap");
+                    swapWorld(info);
+                    swapped.add(info);
+                }
+                for(DownloadInfo info : swapped)
+                    info.restored = true;
+            } catch(IOException e) {
+                broadcastFromMain(String.format("[§e%s] §f回復錯誤： §c%s", plugin.getName(), e.getMessage()));
+
+                // Put the swapped ones back so the worlds stay consistent
+                for(DownloadInfo info : swapped) {
                     try {
-                        FileUtil.deleteDirectory(dloadDir.toPath());
-                    } catch(IOException e) {
-                        plugin.getLogger().warning("Cannot delete world download folder: " + e);
+                        unswapWorld(info);
+                    } catch(IOException e1) {
+                        plugin.getLogger().warning("Cannot put " + info.worldName + " back: " + e1);
                     }
                 }
+            }
 
-                synchronized(lock) {
-                    downloading = null;
-                    lock.notify();
+        } finally {
+            // Load the worlds
+            callSync(() -> {
+                for(DownloadInfo info : unloaded) {
+                    if(mvWorldManager.loadWorld(info.worldName))
+                        Bukkit.broadcastMessage(String.format("[§e%s] §f已回復 §a%s", plugin.getName(), info.worldName));
+                    else
+                        Bukkit.broadcastMessage(String.format("[§e%s] §f無法載入世界 §a%s", plugin.getName(), info.worldName));
                 }
+                return null;
+            });
+            swapTime.observeSince(start);
+        }
+    }
+
+    /*
+     * Replace worldDir with dloadDir
+     * Renames the old world out of the way so it can be put back if anything fails
+     */
+    private void swapWorld(DownloadInfo info) throws IOException {
+        // oldDir is next to worldDir so this is always a rename
+        Files.move(info.worldDir, info.oldDir, StandardCopyOption.ATOMIC_MOVE);
+        info.oldAside = true;
+
+        try {
+            FileUtil.moveDirectory(info.dloadDir, info.worldDir, io);
+        } catch(IOException e) {
+            // Put the old world back
+            try {
+                deleteIfExists(info.worldDir);
+                Files.move(info.oldDir, info.worldDir, StandardCopyOption.ATOMIC_MOVE);
+                info.oldAside = false;
+            } catch(IOException e1) {
+                e.addSuppressed(e1);
+            }
+            throw e;
+        }
+    }
+
+    // Undo swapWorld
+    private void unswapWorld(DownloadInfo info) throws IOException {
+        if(!Files.isDirectory(info.oldDir))
+            throw new IOException("old world folder is already deleted");
+
+        FileUtil.moveDirectory(info.worldDir, info.dloadDir, io);
+        Files.move(info.oldDir, info.worldDir, StandardCopyOption.ATOMIC_MOVE);
+        info.oldAside = false;
+    }
+
+    /*
+     * Delete the old world folder in background so it's not holding up the restore
+     * If the restore failed and the old files couldn't be put back, oldDir can
+     * be the only copy of them, so it's kept where the next restore won't delete it
+     */
+    private void deleteOld(DownloadInfo info) {
+        if(info.oldAside && !info.restored) {
+            Path kept = info.oldDir.resolveSibling(info.oldDir.getFileName() + "-" + System.currentTimeMillis());
+            try {
+                Files.move(info.oldDir, kept, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException e) {
+                kept = info.oldDir;
+            }
+            plugin.getLogger().severe("Cannot put the old files of " + info.worldName + " back, they are kept in " + kept);
+            return;
+        }
+
+        io.execute(() -> {
+            try {
+                deleteIfExists(info.oldDir);
+            } catch(IOException e) {
+                plugin.getLogger().warning("Cannot delete old world folder: " + e);
             }
         });
     }
 
+    // Make sure the downloaded files look like a world before replacing the old one
+    private void verifyWorld(Path dir) throws IOException {
+        Path levelDat = dir.resolve("level.dat");
+        if(!Files.isRegularFile(levelDat) || Files.size(levelDat) == 0)
+            throw new IOException("備份裡找不到 level.dat");
+    }
+
+    private void deleteIfExists(Path path) throws IOException {
+        if(Files.isDirectory(path))
+            FileUtil.deleteDirectory(path);
+        else
+            Files.deleteIfExists(path);
+    }
+
+    // Only call this from async thread
+    private <T> T callSync(Callable<T> task) throws InterruptedException, ExecutionException {
+        return Bukkit.getScheduler().callSyncMethod(plugin, task).get();
+    }
+
     // Only call this from async thread
     private void broadcastFromMain(String msg) {
         Bukkit.getScheduler().callSyncMethod(plugin, () -> {
@@ -195,11 +674,51 @@ public class WorldDownloader {
         });
     }
 
-    private static class DownloadInfo {
+    // A backup and the tier it's in
+    private static class Source {
+        StorageBackend tier;
+        String path;
+        StorageBackend.FileInfo info;
+
+        Source(StorageBackend tier, String path, StorageBackend.FileInfo info) {
+            this.tier = tier;
+            this.path = path;
+            this.info = info;
+        }
+
+        RemoteZip open() {
+            return new RemoteZip(tier, path, info.size);
+        }
+    }
+
+    private class DownloadInfo {
         World world;
-        LimitedInputStream stream;
-        DownloadInfo(World world) {
+        String worldName;
+        String path;
+        Path worldDir;
+        Path dloadDir;
+        Path oldDir;
+        TransferStats.Job job;
+        volatile LimitedInputStream stream;
+        volatile boolean downloaded = false;
+        boolean restored = false;
+        // Old files are in oldDir and weren't put back
+        boolean oldAside = false;
+
+        DownloadInfo(World world, String backupFile) {
             this.world = world;
+            this.job = stats.startJob(world, "restore");
+            this.worldName = world.getName();
+            this.path = String.format("%s/%s/%s",
+                    plugin.getConfig().getString("drive_path"),
+                    world.getUID().toString(), backupFile);
+
+            // The world is downloaded next to the world folder so the swap can be a rename
+            this.worldDir = world.getWorldFolder().toPath();
+            this.dloadDir = worldDir
+                .resolveSibling(plugin.getConfig().getString("download_path"))
+                .resolve(world.getUID().toString());
+            this.oldDir = worldDir.resolveSibling(worldDir.getFileName() + ".dropup-old");
         }
     }
 }
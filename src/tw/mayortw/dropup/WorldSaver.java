@@ -0,0 +1,246 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import tw.mayortw.dropup.util.ReflectionUtils;
+import tw.mayortw.dropup.util.ReflectionUtils.PackageType;
+import tw.mayortw.dropup.util.VersionUtil;
+
+/*
+ * Saves a world so its files are complete for a backup
+ * The server internals it needs are looked up once when the plugin starts
+ *   1.8 - 1.13    WorldServer.flushSave()
+ *   1.14 - 1.16   WorldServer.save(null, true, false)
+ *   1.15 - 1.16   Spigot: chunks are handed to the region writer on the server
+ *                 thread and the rest is waited for off it
+ *   1.17+         world.save() only, the server classes aren't versioned anymore
+ */
+public abstract class WorldSaver {
+
+    Logger logger;
+
+    private WorldSaver(Logger logger) {
+        this.logger = logger;
+    }
+
+    public static WorldSaver create(Logger logger) {
+        String version = Bukkit.getBukkitVersion();
+        try {
+            if(VersionUtil.atLeast("1.17")) {
+                logger.warning("Flushing saves isn't supported on " + version + ", backups may miss the last few seconds of changes");
+                return new BukkitSaver(logger);
+            }
+
+            MethodHandle getHandle = handle(ReflectionUtils.getMethod("CraftWorld", PackageType.CRAFTBUKKIT, "getHandle"));
+            if(!VersionUtil.atLeast("1.14"))
+                return new FlushSaver(logger, getHandle, handle(ReflectionUtils.getMethod("WorldServer", PackageType.MINECRAFT_SERVER, "flushSave")));
+
+            Method save = ReflectionUtils.getMethod("WorldServer", PackageType.MINECRAFT_SERVER, "save",
+                    PackageType.MINECRAFT_SERVER.getClass("IProgressUpdate"), boolean.class, boolean.class);
+            SaveSaver saver = new SaveSaver(logger, getHandle, handle(save));
+
+            WorldSaver async = RegionWriterSaver.create(saver);
+            if(async != null) return async;
+            return saver;
+        } catch(ReflectiveOperationException e) {
+            logger.warning("Cannot flush saves on " + version + " (" + e + "), backups may miss the last few seconds of changes");
+            return new BukkitSaver(logger);
+        }
+    }
+
+    /*
+     * Save the world on the server thread
+     * Returns what's left to be written, to wait for off the server thread
+     */
+    public abstract CompletableFuture<Void> save(World world);
+
+    // Save and wait for everything to be written, on the server thread
+    public abstract void flushSave(World world);
+
+    private static MethodHandle handle(Method method) throws IllegalAccessException {
+        return MethodHandles.publicLookup().unreflect(method);
+    }
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    // Whatever the API does, the region files can be behind
+    private static class BukkitSaver extends WorldSaver {
+        BukkitSaver(Logger logger) {
+            super(logger);
+        }
+
+        @Override
+        public CompletableFuture<Void> save(World world) {
+            world.save();
+            return DONE;
+        }
+
+        @Override
+        public void flushSave(World world) {
+            world.save();
+        }
+    }
+
+    // 1.8 - 1.13
+    private static class FlushSaver extends WorldSaver {
+        private MethodHandle getHandle;
+        private MethodHandle flushSave;
+
+        FlushSaver(Logger logger, MethodHandle getHandle, MethodHandle flushSave) {
+            super(logger);
+            this.getHandle = getHandle;
+            this.flushSave = flushSave;
+        }
+
+        @Override
+        public CompletableFuture<Void> save(World world) {
+            flushSave(world);
+            return DONE;
+        }
+
+        @Override
+        public void flushSave(World world) {
+            world.save();
+            try {
+                flushSave.invoke(getHandle.invoke(world));
+            } catch(Throwable e) { // ExceptionWorldConflict
+                logger.warning("Couldn't flush save " + world.getName() + ": " + e);
+            }
+        }
+    }
+
+    // 1.14 - 1.16
+    private static class SaveSaver extends WorldSaver {
+        private MethodHandle getHandle;
+        private MethodHandle save;
+
+        SaveSaver(Logger logger, MethodHandle getHandle, MethodHandle save) {
+            super(logger);
+            this.getHandle = getHandle;
+            this.save = save;
+        }
+
+        @Override
+        public CompletableFuture<Void> save(World world) {
+            flushSave(world);
+            return DONE;
+        }
+
+        @Override
+        public void flushSave(World world) {
+            world.save();
+            try {
+                save.invoke(getHandle.invoke(world), null, true, false);
+            } catch(Throwable e) {
+                logger.warning("Couldn't flush save " + world.getName() + ": " + e);
+            }
+        }
+
+        Object getHandle(World world) throws Throwable {
+            return getHandle.invoke(world);
+        }
+    }
+
+    /*
+     * 1.15 - 1.16 on Spigot
+     * world.save() puts every changed chunk in the queue of the region writer
+     * (IOWorker) without waiting. Waiting for that queue is most of the time a
+     * flushing save takes, and it's safe from any thread
+     * Paper writes chunks its own way, so it gets the flushing save
+     */
+    private static class RegionWriterSaver extends WorldSaver {
+        private SaveSaver fallback;
+        private MethodHandle getChunkProvider;
+        private MethodHandle playerChunkMap;
+        private MethodHandle regionWriter;
+        private MethodHandle synchronize;
+
+        private RegionWriterSaver(SaveSaver fallback) {
+            super(fallback.logger);
+            this.fallback = fallback;
+        }
+
+        // Returns null if the server doesn't have what it needs
+        static RegionWriterSaver create(SaveSaver fallback) {
+            try {
+                Class.forName("com.destroystokyo.paper.PaperConfig");
+                return null;
+            } catch(ClassNotFoundException e) {
+                // Not Paper
+            }
+
+            try {
+                RegionWriterSaver saver = new RegionWriterSaver(fallback);
+                Method getChunkProvider = ReflectionUtils.getMethod("WorldServer", PackageType.MINECRAFT_SERVER, "getChunkProvider");
+                saver.getChunkProvider = handle(getChunkProvider);
+                Field chunkMap = ReflectionUtils.getField("ChunkProviderServer", PackageType.MINECRAFT_SERVER, false, "playerChunkMap");
+                saver.playerChunkMap = MethodHandles.publicLookup().unreflectGetter(chunkMap);
+
+                // The field names are obfuscated, find them by type
+                Class<?> ioWorker = PackageType.MINECRAFT_SERVER.getClass("IOWorker");
+                Field writer = only(chunkMap.getType(), ioWorker);
+                writer.setAccessible(true);
+                saver.regionWriter = MethodHandles.lookup().unreflectGetter(writer);
+
+                Method synchronize = null;
+                for(Method method : ioWorker.getDeclaredMethods()) {
+                    if(Modifier.isPublic(method.getModifiers()) && !Modifier.isStatic(method.getModifiers())
+                            && method.getParameterCount() == 0 && method.getReturnType() == CompletableFuture.class) {
+                        if(synchronize != null) return null; // Not sure which one
+                        synchronize = method;
+                    }
+                }
+                if(synchronize == null) return null;
+                saver.synchronize = handle(synchronize);
+                return saver;
+            } catch(ReflectiveOperationException | RuntimeException e) { // Older than 1.15 doesn't have IOWorker
+                return null;
+            }
+        }
+
+        // The only field of a type in a class or its superclasses
+        private static Field only(Class<?> clazz, Class<?> type) throws NoSuchFieldException {
+            Field found = null;
+            for(; clazz != null; clazz = clazz.getSuperclass()) {
+                for(Field field : clazz.getDeclaredFields()) {
+                    if(field.getType() != type || Modifier.isStatic(field.getModifiers())) continue;
+                    if(found != null) throw new NoSuchFieldException("More than one " + type.getSimpleName());
+                    found = field;
+                }
+            }
+            if(found == null) throw new NoSuchFieldException(type.getSimpleName());
+            return found;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public CompletableFuture<Void> save(World world) {
+            world.save();
+            try {
+                Object chunkMap = playerChunkMap.invoke(getChunkProvider.invoke(fallback.getHandle(world)));
+                return (CompletableFuture<Void>) synchronize.invoke(regionWriter.invoke(chunkMap));
+            } catch(Throwable e) {
+                logger.warning("Couldn't save " + world.getName() + " in the background: " + e);
+                fallback.flushSave(world);
+                return DONE;
+            }
+        }
+
+        @Override
+        public void flushSave(World world) {
+            fallback.flushSave(world);
+        }
+    }
+}
@@ -3,54 +3,118 @@ package tw.mayortw.dropup;
  * Written by R26
  */
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
-import java.lang.reflect.Method;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitScheduler;
 import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.scheduler.BukkitWorker;
 import org.bukkit.World;
 
-import tw.mayortw.dropup.util.ReflectionUtils.PackageType;
 import tw.mayortw.dropup.util.*;
 
 public class WorldUploader implements Runnable {
 
-    private static final String DATE_FORMAT = "yyyy-MM-dd-HH-mm-ss";
+    private static final String DATE_FORMAT = RetentionPolicy.DATE_FORMAT;
+
+    private static final Metrics.Histogram flushTime = Profiler.section("flush", "Time the main thread spent saving a world for backup");
+    private static final Metrics.Histogram zipTime = Metrics.timer("dropup_zip_seconds", "Time spent zipping a world");
+    private static final Metrics.Counter zipBytes = Metrics.counter("dropup_zip_bytes_total", "Bytes of zip files written");
+    private static final Metrics.Histogram uploadTime = Metrics.timer("dropup_upload_seconds", "Time spent uploading a backup");
+    private static final Metrics.Counter uploadBytes = Metrics.counter("dropup_upload_bytes_total", "Bytes uploaded");
+    private static final Metrics.Histogram pruneTime = Metrics.timer("dropup_prune_seconds", "Time spent deleting old backups");
+    private static final Metrics.Counter backups = Metrics.counter("dropup_backups_total", "Finished backups");
+    private static final Metrics.Counter backupFailures = Metrics.counter("dropup_backup_failures_total", "Failed backups");
+    private static final Metrics.Counter uploadRetries = Metrics.counter("dropup_upload_retries_total", "Backup volume uploads retried");
+    private static final Metrics.Counter backupsSkipped = Metrics.counter("dropup_backups_skipped_total", "Backups skipped because the world didn't change");
 
     private Plugin plugin;
-    private GoogleDriveUtil drive;
+    private StorageBackend storage;
+    private RetentionPolicy retention;
+    private DeltaStore deltas;
+    private ZipGovernor governor;
+    private WorldSaver saver;
+    private TransferStats stats;
+    private ExecutorService io;
     private Callback cb;
 
+    // Fingerprint of each world's folder at its last backup, by uid
+    private File fingerprintFile;
+    private Properties fingerprints = new Properties();
+
     private ConcurrentHashMap<World, Integer> scheduledBackups = new ConcurrentHashMap<>();
     private LinkedBlockingQueue<World> awaiting = new LinkedBlockingQueue<>();
     private UploadInfo uploading = null;
     private int uploadSpeed;
+    private long volumeSize; // kb, 0 to not split backups
+    private int volumeThreads;
+    private int volumeRetries;
 
     private Thread workThread;
 
-    public WorldUploader(Plugin plugin, GoogleDriveUtil drive, Callback cb) {
+    /*
+     * retention can be null to keep max_saves backups in storage only
+     * deltas can be null to always make full backups
+     * governor can be null to zip at full speed
+     */
+    public WorldUploader(Plugin plugin, StorageBackend storage, RetentionPolicy retention, DeltaStore deltas,
+            ZipGovernor governor, WorldSaver saver, TransferStats stats, ExecutorService io, Callback cb) {
         this.plugin = plugin;
-        this.drive = drive;
+        this.storage = storage;
+        this.retention = retention;
+        this.deltas = deltas;
+        this.governor = governor;
+        this.saver = saver;
+        this.stats = stats;
+        this.io = io;
         this.cb = cb;
         this.uploadSpeed = plugin.getConfig().getInt("upload_speed") * 1024; // kb to byte
+        this.volumeSize = Math.max(0, plugin.getConfig().getLong("volumes.size")) * 1024; // mb to kb
+        this.volumeThreads = Math.max(1, plugin.getConfig().getInt("volumes.threads", 3));
+        this.volumeRetries = Math.max(0, plugin.getConfig().getInt("volumes.retries", 3));
+        this.fingerprintFile = new File(plugin.getDataFolder(), "fingerprints.properties");
+        loadFingerprints();
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, this);
+        Metrics.gauge("dropup_backup_queue_depth", "Worlds waiting to be backed up", () -> awaiting.size());
+        Metrics.gauge("dropup_backup_running", "1 if a world is being backed up", () -> uploading != null ? 1 : 0);
+        Metrics.gauge("dropup_upload_speed_limit_bytes", "Upload speed limit in bytes per second, 0 or less for no limit", () -> uploadSpeed);
+
+        io.execute(this);
     }
 
     public void stopWorker() {
@@ -107,13 +171,22 @@ public class WorldUploader implements Runnable {
 
     /*
      * Sets max upload speed
-     * This changes the current uploading stream too
+     * This changes the current uploading streams too
      */
     public void setUploadSpeed(int speed) {
         this.uploadSpeed = speed * 1024; // kb to byte
+        updateStreamRates();
+    }
+
+    // Upload speed is shared by the streams uploading at once
+    private void updateStreamRates() {
+        UploadInfo info = uploading;
+        if(info == null) return;
 
-        if(uploading != null && uploading.stream != null)
-            uploading.stream.setRate(uploadSpeed);
+        int count = info.streams.size();
+        int rate = uploadSpeed <= 0 ? uploadSpeed : Math.max(1, uploadSpeed / Math.max(1, count));
+        for(LimitedInputStream stream : info.streams)
+            stream.setRate(rate);
     }
 
     public World getCurrentWorld() {
@@ -167,11 +240,31 @@ public class WorldUploader implements Runnable {
                 plugin.getConfig().getString("drive_path"),
                 world.getUID().toString(), backupFile);
 
+        // Delta backups can't be restored without their base
+        if(deltas != null && !silent) {
+            Set<String> dependents = deltas.dependents(world, backupFile);
+            if(!dependents.isEmpty()) {
+                Bukkit.broadcastMessage(String.format("[§e%s] §f無法刪除 §a%s §c還有 %d 個備份需要它",
+                            plugin.getName(), backupFile, dependents.size()));
+                return;
+            }
+        }
+
         try {
-            drive.deleteFile(path);
-            if(!silent)
+            storage.deleteFile(path);
+            storage.deleteFile(ZipIndex.indexName(path));
+            if(retention != null) {
+                retention.getLocalTier().deleteFile(path);
+                retention.getLocalTier().deleteFile(ZipIndex.indexName(path));
+            }
+            if(deltas != null)
+                deltas.deleted(world, backupFile);
+            if(!silent) {
+                // It might have been the last one, so the next backup can't be skipped
+                setFingerprint(world, null);
                 Bukkit.broadcastMessage(String.format("[§e%s] §f已刪除 §a%s", plugin.getName(), backupFile));
-        } catch(GoogleDriveUtil.GoogleDriveException e) {
+            }
+        } catch(StorageBackend.StorageException e) {
             if(!silent)
                 Bukkit.broadcastMessage(String.format("[§e%s] §f無法刪除 §a%s §c%s", plugin.getName(), backupFile, e.getMessage()));
         }
@@ -180,8 +273,16 @@ public class WorldUploader implements Runnable {
     private void deleteOldBackups(World world) {
         String path = plugin.getConfig().getString("drive_path") + "/" + world.getUID().toString();
 
+        if(retention != null) {
+            LocalDateTime now = LocalDateTime.now();
+            pruneTier(world, retention.getLocalTier(), path, now, true);
+            pruneTier(world, storage, path, now, false);
+            return;
+        }
+
         try {
-            drive.listFileNames(path).stream()
+            List<String> sorted = storage.listFileNames(path).stream()
+                .filter(WorldUploader::isBackup)
                 .sorted((a, b) -> {
                     String aDate = a.substring(0, a.lastIndexOf('.'));
                     String bDate = b.substring(0, b.lastIndexOf('.'));
@@ -192,12 +293,51 @@ public class WorldUploader implements Runnable {
                         return 0;
                     }
                 })
-                .skip(plugin.getConfig().getInt("max_saves"))
-                .forEach(file -> {
+                .collect(Collectors.toList());
+
+            // Keep the bases of the delta backups that are kept
+            int maxSaves = plugin.getConfig().getInt("max_saves");
+            Set<String> keep = new HashSet<>(sorted.subList(0, Math.min(maxSaves, sorted.size())));
+            if(deltas != null)
+                keep = deltas.required(world, keep);
+
+            for(String file : sorted) {
+                if(!keep.contains(file))
                     deleteBackup(world, file, true);
-                });
+            }
+
+        } catch(StorageBackend.StorageException e) {
+            plugin.getLogger().warning("Can't get folder content for " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Delete the backups the retention policy doesn't keep on this tier
+    private void pruneTier(World world, StorageBackend tier, String path, LocalDateTime now, boolean local) {
+        try {
+            List<String> files = tier.listFileNames(path);
+            List<String> names = new ArrayList<>();
+            for(String file : files) {
+                if(isBackup(file)) names.add(file);
+            }
 
-        } catch(GoogleDriveUtil.GoogleDriveException e) {
+            Set<String> keep = retention.keep(names, now, local);
+            if(deltas != null)
+                keep = deltas.required(world, keep);
+            for(String file : files) {
+                // Sidecar files go with their backup
+                String name = file.endsWith(ZipIndex.SUFFIX)
+                    ? file.substring(0, file.length() - ZipIndex.SUFFIX.length())
+                    : file;
+                if(keep.contains(name) || !isBackup(name)) continue;
+                try {
+                    tier.deleteFile(path + "/" + file);
+                    if(deltas != null && isBackup(file))
+                        deltas.deleted(world, file);
+                } catch(StorageBackend.StorageException e) {
+                    plugin.getLogger().warning("Can't delete " + path + "/" + file + ": " + e.getMessage());
+                }
+            }
+        } catch(StorageBackend.StorageException e) {
             plugin.getLogger().warning("Can't get folder content for " + path + ": " + e.getMessage());
         }
     }
@@ -214,55 +354,177 @@ public class WorldUploader implements Runnable {
 
             // Wait for a world
             World world;
+            TransferStats.Job job;
             try {
                 uploading = new UploadInfo(awaiting.take());
                 world = uploading.world;
+                job = stats.startJob(world, "backup");
             } catch(InterruptedException e) {
                 break;
             }
+            boolean success = false;
 
             // Do stuff that needs to be done in main thread
             // When disabling, rely on finishAllBackups to flushSave
+            job.stage("flush");
+            PathFilter filter = backupFilter(world);
             if(plugin.isEnabled()) {
+                // Nothing to back up if no file was written since the last backup and nothing is waiting to be saved
+                String before = fingerprint(world, filter);
+                CompletableFuture<Void> saving;
                 try {
-                    Bukkit.getScheduler().callSyncMethod(plugin, () -> {
+                    saving = Bukkit.getScheduler().callSyncMethod(plugin, () -> {
+                        if(before != null && before.equals(getFingerprint(world)) && !cb.isWorldDirty(world))
+                            return null;
                         cb.preWorldBackup(world);
-                        flushSave(world);
-                        return null;
+                        long start = System.nanoTime();
+                        try {
+                            return saver.save(world);
+                        } finally {
+                            flushTime.observeSince(start);
+                        }
                     }).get();
+                    // What the server writes in the background doesn't need the main thread
+                    if(saving != null) {
+                        try {
+                            saving.get();
+                        } catch(ExecutionException e) {
+                            plugin.getLogger().warning("Couldn't finish saving " + world.getName() + ": " + e.getCause());
+                        }
+                    }
                 } catch (InterruptedException | ExecutionException e) {
+                    job.finish(false);
                     break;
                 }
+
+                if(saving == null) {
+                    plugin.getLogger().info(world.getName() + " unchanged since last backup, skipping");
+                    job.stage("unchanged");
+                    job.finish(true);
+                    backupsSkipped.inc();
+                    doneUploading();
+                    continue;
+                }
             }
 
+            cb.postWorldSave(world);
+
             // Backup
             Bukkit.broadcastMessage(String.format("[§e%s§r] §f正在備份 §a%s", plugin.getName(), world.getName()));
 
             Path tempPath = null;
+            String fingerprint = fingerprint(world, filter);
             try {
                 // Copy the world directory to a temp folder
                 tempPath = Files.createTempDirectory("dropup-" + world.getUID());
                 File worldFolder = world.getWorldFolder();
-                File zipFile = tempPath.resolve("backup.zip").toFile();
+                List<File> zipParts = new ArrayList<>();
+
+                LocalDateTime now = LocalDateTime.now();
+                String uploadPath = String.format("%s/%s", plugin.getConfig().get("drive_path"), world.getUID().toString());
+                String uploadName = String.format("%s.zip", now.format(DateTimeFormatter.ofPattern(DATE_FORMAT)));
+
+                // With retention, save to the local tier and only upload the ones kept long-term
+                boolean promote = true;
+                if(retention != null) {
+                    List<String> remoteNames = new ArrayList<>();
+                    for(String name : storage.listFileNames(uploadPath)) {
+                        if(isBackup(name)) remoteNames.add(name);
+                    }
+                    promote = retention.shouldPromote(uploadName, remoteNames, now);
+                }
 
-                // Zip file
-                FileUtil.zipFiles(zipFile, worldFolder);
+                // Only store changed chunks if the last backup is there to build on
+                // Backups promoted to the main storage are always full, it doesn't have the ones in between
+                DeltaStore.Base base = null;
+                if(deltas != null && (retention == null || !promote)) {
+                    base = deltas.getBase(world);
+                    StorageBackend tier = retention != null ? retention.getLocalTier() : storage;
+                    if(base != null && !tier.listFileNames(uploadPath).contains(base.name))
+                        base = null;
+                }
+                RegionDelta delta = deltas != null ? new RegionDelta(base != null ? base.manifest : null) : null;
+
+                // Zip file, hashing it while it's written
+                job.stage("zip");
+                long zipStart = System.nanoTime();
+                MessageDigest digest = FileUtil.newDigest();
+                ZipIndex index = new ZipIndex();
+                OutputStream zipOut = new BufferedOutputStream(zipOutput(tempPath, zipParts), 64 * 1024);
+                Thread thread = Thread.currentThread();
+                int priority = thread.getPriority();
+                // Virtual threads ignore priorities, there only the pausing slows zipping down
+                boolean lowPriority = governor != null && governor.isLowPriority() && !IoExecutor.isVirtual(thread);
+                if(governor != null)
+                    zipOut = governor.wrap(zipOut);
+                if(lowPriority)
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                try {
+                    FileUtil.zipFiles(new DigestOutputStream(zipOut, digest), worldFolder, index, delta, filter);
+                } finally {
+                    // Platform threads of the I/O executor run other tasks after this
+                    if(lowPriority)
+                        thread.setPriority(priority);
+                }
+                File indexFile = tempPath.resolve("backup.zip" + ZipIndex.SUFFIX).toFile();
+                try(OutputStream out = new FileOutputStream(indexFile)) {
+                    index.write(out);
+                }
+                long zipLength = 0;
+                for(File part : zipParts)
+                    zipLength += part.length();
+                zipTime.observeSince(zipStart);
+                zipBytes.inc(zipLength);
+
+                Map<String, String> properties = new HashMap<>();
+                properties.put(FileUtil.CHECKSUM_PROPERTY, FileUtil.toHex(digest.digest()));
+                if(base != null) {
+                    properties.put(RegionDelta.BASE_PROPERTY, base.name);
+                    plugin.getLogger().info(String.format("%s: %d changed chunks, %d unchanged since %s",
+                                world.getName(), delta.getChangedChunks(), delta.getSameChunks(), base.name));
+                }
 
-                try(LimitedInputStream stream = new LimitedInputStream(new FileInputStream(zipFile), uploadSpeed)) {
-                    // Save the stream so it can be sped up later
-                    uploading.stream = stream;
+                if(retention != null) {
+                    job.stage("local");
+                    try(InputStream stream = openParts(zipParts)) {
+                        retention.getLocalTier().upload(uploadPath, uploadName, stream, zipLength, properties);
+                    }
+                    uploadIndex(retention.getLocalTier(), uploadPath, uploadName, indexFile);
+                }
 
-                    // Upload
-                    String uploadPath = String.format("%s/%s", plugin.getConfig().get("drive_path"), world.getUID().toString());
-                    String uploadName = String.format("%s.zip", LocalDateTime.now().format(DateTimeFormatter.ofPattern(DATE_FORMAT)));
-                    drive.upload(uploadPath, uploadName, stream);
+                if(promote) {
+                    job.stage("upload");
+                    UploadInfo info = uploading;
+                    job.track(info::getTransferred, zipLength);
 
-                    // Finish backup
-                    deleteOldBackups(world);
-                    Bukkit.broadcastMessage(String.format("[§e%s§r] §a%s §f已備份到 §a%s", plugin.getName(), world.getName(), String.format("%s/%s", uploadPath, uploadName)));
+                    // Upload
+                    long uploadStart = System.nanoTime();
+                    try {
+                        if(zipParts.size() == 1)
+                            uploadFile(uploadPath, uploadName, zipParts.get(0), properties);
+                        else
+                            uploadVolumes(uploadPath, uploadName, zipParts, properties);
+                    } finally {
+                        uploadTime.observeSince(uploadStart);
+                    }
+                    uploadIndex(storage, uploadPath, uploadName, indexFile);
                 }
 
-            } catch(GoogleDriveUtil.GoogleDriveException | IOException e) {
+                if(deltas != null)
+                    deltas.saved(world, uploadName, base, delta.getManifest());
+
+                // Finish backup
+                job.stage("prune");
+                long pruneStart = System.nanoTime();
+                deleteOldBackups(world);
+                pruneTime.observeSince(pruneStart);
+                success = true;
+                if(fingerprint != null)
+                    setFingerprint(world, fingerprint);
+                Bukkit.broadcastMessage(String.format("[§e%s§r] §a%s §f已備份到 §a%s%s", plugin.getName(), world.getName(),
+                            String.format("%s/%s", uploadPath, uploadName), promote ? "" : " §7(本地)"));
+
+            } catch(StorageBackend.StorageException | IOException e) {
                 Bukkit.broadcastMessage(String.format("[§e%s§r] §f備份錯誤： §c%s", plugin.getName(), e.getMessage()));
                 e.printStackTrace();
             } finally {
@@ -273,44 +535,267 @@ public class WorldUploader implements Runnable {
                 } catch(IOException e) {
                     plugin.getLogger().warning("Cannot delete temporary folder: " + e.getMessage());
                 }
-
-                // Tell whoever's waiting that it has finished
-                synchronized(this) {
-                    uploading = null;
-                    this.notifyAll();
-                }
+                job.finish(success);
+                if(success)
+                    backups.inc();
+                else
+                    backupFailures.inc();
+                cb.postWorldBackup(world, success);
+
+                doneUploading();
             }
         }
         plugin.getLogger().info("Backup worker thread stopped");
     }
 
-    private void flushSave(World world) {
-        world.save();
+    // Tell whoever's waiting that it has finished
+    private synchronized void doneUploading() {
+        uploading = null;
+        this.notifyAll();
+    }
+
+    // Include and exclude rules from the config, a world's own rules are added to the common ones
+    private PathFilter backupFilter(World world) {
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("filters");
+        if(section == null) return PathFilter.ALL;
+
+        List<String> include = new ArrayList<>(section.getStringList("include"));
+        List<String> exclude = new ArrayList<>(section.getStringList("exclude"));
+        ConfigurationSection worlds = section.getConfigurationSection("worlds");
+        ConfigurationSection own = worlds != null ? worlds.getConfigurationSection(world.getName()) : null;
+        if(own != null) {
+            include.addAll(own.getStringList("include"));
+            exclude.addAll(own.getStringList("exclude"));
+        }
+
+        try {
+            return new PathFilter(include, exclude);
+        } catch(IllegalArgumentException e) { // Bad glob pattern
+            plugin.getLogger().warning("Invalid backup filter for " + world.getName() + ", backing up every file: " + e.getMessage());
+            return PathFilter.ALL;
+        }
+    }
+
+    // Null if the folder can't be read, so the backup isn't skipped
+    private String fingerprint(World world, PathFilter filter) {
+        try {
+            return FileUtil.fingerprint(world.getWorldFolder().toPath(), filter);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot check files of " + world.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String getFingerprint(World world) {
+        return fingerprints.getProperty(world.getUID().toString());
+    }
+
+    // null to forget it
+    private void setFingerprint(World world, String fingerprint) {
+        synchronized(fingerprints) {
+            if(fingerprint != null)
+                fingerprints.setProperty(world.getUID().toString(), fingerprint);
+            else if(fingerprints.remove(world.getUID().toString()) == null)
+                return;
+
+            try(OutputStream out = new FileOutputStream(fingerprintFile)) {
+                fingerprints.store(out, null);
+            } catch(IOException e) {
+                plugin.getLogger().warning("Cannot write " + fingerprintFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void loadFingerprints() {
+        if(!fingerprintFile.exists()) return;
+        try(InputStream in = new FileInputStream(fingerprintFile)) {
+            fingerprints.load(in);
+        } catch(IOException e) {
+            plugin.getLogger().warning("Cannot read " + fingerprintFile + ": " + e.getMessage());
+        }
+    }
 
+    // Where the zip is written. Split into parts of volumeSize if it's set
+    private OutputStream zipOutput(Path tempPath, List<File> parts) throws IOException {
+        File first = tempPath.resolve("backup.zip." + VolumeStorage.partName(0)).toFile();
+        parts.add(first);
+        if(volumeSize <= 0)
+            return new FileOutputStream(first);
+
+        return new SplitOutputStream(new FileOutputStream(first), (int) Math.min(volumeSize, Integer.MAX_VALUE), offset -> {
+            File part = tempPath.resolve("backup.zip." + VolumeStorage.partName(parts.size())).toFile();
+            parts.add(part);
+            return new FileOutputStream(part);
+        });
+    }
+
+    // The parts as one stream
+    private static InputStream openParts(List<File> parts) throws IOException {
+        List<InputStream> streams = new ArrayList<>();
         try {
-            Method getHandle = ReflectionUtils.getMethod("CraftWorld", PackageType.CRAFTBUKKIT, "getHandle");
-            if(VersionUtil.atLeast("1.14")) {
-                Method save = ReflectionUtils.getMethod("WorldServer", PackageType.MINECRAFT_SERVER, "save", PackageType.MINECRAFT_SERVER.getClass("IProgressUpdate"), boolean.class, boolean.class);
-                save.invoke(getHandle.invoke(world), null, true, false);
-            } else {
-                Method flushSave = ReflectionUtils.getMethod("WorldServer", PackageType.MINECRAFT_SERVER, "flushSave");
-                flushSave.invoke(getHandle.invoke(world));
+            for(File part : parts)
+                streams.add(new FileInputStream(part));
+        } catch(IOException e) {
+            for(InputStream stream : streams)
+                stream.close();
+            throw e;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    private void uploadFile(String path, String name, File file, Map<String, String> properties) throws StorageBackend.StorageException, IOException {
+        try(LimitedInputStream stream = new LimitedInputStream(new FileInputStream(file), uploadSpeed)) {
+            // Save the stream so it can be sped up later
+            uploading.streams.add(stream);
+            try {
+                storage.upload(path, name, stream, file.length(), properties);
+            } finally {
+                uploading.finished(stream);
+                uploadBytes.inc(stream.getTransferred());
             }
-        } catch(Exception e) { // ClassNotFoundException, NoSuchMethodException and ExceptionWorldConflict
-            plugin.getLogger().warning("Couldn't flush save: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Upload a backup split in parts as a folder of volumes
+     * The first part goes alone so the folder is only made once, then the
+     * rest go volumeThreads at a time. The manifest is written last
+     */
+    private void uploadVolumes(String path, String name, List<File> parts, Map<String, String> properties) throws StorageBackend.StorageException, IOException {
+        String folder = path + "/" + name;
+        AtomicInteger next = new AtomicInteger(1);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        try {
+            uploadPart(folder, parts.get(0), VolumeStorage.partName(0));
+
+            // Each task takes the next part until they're all done
+            List<Future<Void>> uploads = new ArrayList<>();
+            for(int t = 0; t < Math.min(volumeThreads, parts.size() - 1); t++) {
+                uploads.add(io.submit(() -> {
+                    int i;
+                    while(!failed.get() && (i = next.getAndIncrement()) < parts.size()) {
+                        try {
+                            uploadPart(folder, parts.get(i), VolumeStorage.partName(i));
+                        } catch(StorageBackend.StorageException | IOException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            // Wait for all of them even if one failed, so nothing is still uploading when the folder is deleted
+            Throwable failure = null;
+            for(Future<Void> upload : uploads) {
+                try {
+                    upload.get();
+                } catch(ExecutionException e) {
+                    if(failure == null) failure = e.getCause();
+                } catch(InterruptedException e) {
+                    if(failure == null) failure = new IOException("Upload interrupted");
+                }
+            }
+            if(failure instanceof StorageBackend.StorageException)
+                throw (StorageBackend.StorageException) failure;
+            if(failure instanceof IOException)
+                throw (IOException) failure;
+            if(failure != null)
+                throw new IOException(failure);
+
+            List<Long> sizes = new ArrayList<>();
+            for(File part : parts)
+                sizes.add(part.length());
+            VolumeStorage.writeManifest(storage, path, name, sizes, properties);
+
+        } catch(StorageBackend.StorageException | IOException e) {
+            // Don't leave half a backup behind
+            try {
+                storage.deleteFile(folder);
+            } catch(StorageBackend.StorageException e1) {}
+            throw e;
+        }
+    }
+
+    // Retried by itself, so a failure only costs this part
+    private void uploadPart(String folder, File part, String partName) throws StorageBackend.StorageException, IOException {
+        for(int attempt = 0; ; attempt++) {
+            try(LimitedInputStream stream = new LimitedInputStream(new FileInputStream(part), uploadSpeed)) {
+                uploading.streams.add(stream);
+                updateStreamRates();
+                try {
+                    storage.upload(folder, partName, stream, part.length(), Collections.emptyMap());
+                    uploading.finished(stream);
+                    return;
+                } catch(StorageBackend.StorageException e) {
+                    uploading.streams.remove(stream);
+                    if(attempt >= volumeRetries) throw e;
+                    uploadRetries.inc();
+                    plugin.getLogger().warning(String.format("Upload of %s/%s failed, retrying: %s", folder, partName, e.getMessage()));
+                    // It might have been stored even though it failed
+                    try {
+                        storage.deleteFile(folder + "/" + partName);
+                    } catch(StorageBackend.StorageException e1) {}
+                } finally {
+                    uploadBytes.inc(stream.getTransferred());
+                    updateStreamRates();
+                }
+            }
+        }
+    }
+
+    // The index only makes reading the zip faster, so the backup is fine without it
+    private void uploadIndex(StorageBackend tier, String path, String name, File indexFile) {
+        try(InputStream stream = new FileInputStream(indexFile)) {
+            tier.upload(path, ZipIndex.indexName(name), stream, indexFile.length(), Collections.emptyMap());
+        } catch(IOException | StorageBackend.StorageException e) {
+            plugin.getLogger().warning("Cannot upload zip index of " + name + ": " + e.getMessage());
+        }
+    }
+
+    // Backups are the zip files, the rest are files that go with them
+    static boolean isBackup(String name) {
+        return name.endsWith(".zip");
+    }
+
+    private void flushSave(World world) {
+        long start = System.nanoTime();
+        try {
+            saver.flushSave(world);
+        } finally {
+            flushTime.observeSince(start);
         }
     }
 
     public static interface Callback {
         public void preWorldBackup(World world);
+        // Called off the main thread after the world is saved for backup
+        public void postWorldSave(World world);
+        public void postWorldBackup(World world, boolean success);
+        // True if the world has changes that may not be saved to its files yet
+        public boolean isWorldDirty(World world);
     }
 
-    // POD to store world and its uploading stream
+    // POD to store world and its uploading streams
     private static class UploadInfo {
         World world;
-        LimitedInputStream stream;
+        List<LimitedInputStream> streams = new CopyOnWriteArrayList<>();
+        AtomicLong finishedBytes = new AtomicLong();
         UploadInfo(World world) {
             this.world = world;
         }
+
+        // Call when a stream is done uploading
+        void finished(LimitedInputStream stream) {
+            if(streams.remove(stream))
+                finishedBytes.addAndGet(stream.getTransferred());
+        }
+
+        long getTransferred() {
+            long bytes = finishedBytes.get();
+            for(LimitedInputStream stream : streams)
+                bytes += stream.getTransferred();
+            return bytes;
+        }
     }
 }
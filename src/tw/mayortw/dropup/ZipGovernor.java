@@ -0,0 +1,119 @@
+package tw.mayortw.dropup;
+/*
+ * Written by R26
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+
+import tw.mayortw.dropup.util.Metrics;
+
+/*
+ * Slows zipping down when the server is lagging
+ * The zip is written through a stream that blocks while the server is
+ * behind, which stops the compression feeding it
+ *   MSPT above max_mspt, or TPS below min_tps if MSPT isn't known: pause
+ *   Paused for max_pause seconds: carry on at half speed until it recovers
+ */
+public class ZipGovernor {
+
+    private static final Metrics.Counter pausedTime = Metrics.counter("dropup_zip_paused_milliseconds_total", "Time zipping was paused for server lag");
+
+    private static final long CHECK_INTERVAL = 50; // ms between checks of server load
+    private static final long PAUSE_STEP = 100; // ms
+
+    private Plugin plugin;
+    private TickMonitor ticks;
+    private double maxMspt;
+    private double minTps;
+    private long maxPause; // ms
+    private boolean lowPriority;
+
+    private ZipGovernor(Plugin plugin, TickMonitor ticks) {
+        this.plugin = plugin;
+        this.ticks = ticks;
+    }
+
+    // Returns null if zip_governor isn't enabled in the config
+    public static ZipGovernor fromConfig(Plugin plugin, TickMonitor ticks) {
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("zip_governor");
+        if(section == null || !section.getBoolean("enabled")) return null;
+
+        ZipGovernor governor = new ZipGovernor(plugin, ticks);
+        governor.maxMspt = section.getDouble("max_mspt", 45);
+        governor.minTps = section.getDouble("min_tps", 19);
+        governor.maxPause = Math.max(0, section.getLong("max_pause", 60)) * 1000;
+        governor.lowPriority = section.getBoolean("low_priority", true);
+        return governor;
+    }
+
+    // Whether the zipping thread should have low priority. Virtual threads don't have one
+    public boolean isLowPriority() {
+        return lowPriority;
+    }
+
+    public OutputStream wrap(OutputStream out) {
+        return new GovernedOutputStream(out);
+    }
+
+    private boolean isLagging() {
+        // Server is stopping and waiting for the backups, ticks aren't measured anymore
+        if(!plugin.isEnabled()) return false;
+        double mspt = ticks.getMspt();
+        if(mspt >= 0) return mspt > maxMspt;
+        return ticks.getTps() < minTps;
+    }
+
+    private class GovernedOutputStream extends FilterOutputStream {
+        private long lastCheck = System.currentTimeMillis();
+        private long pausedSince = -1; // start of the current lag
+
+        GovernedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pace();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            pace();
+            out.write(b, off, len);
+        }
+
+        private void pace() throws IOException {
+            long now = System.currentTimeMillis();
+            long worked = now - lastCheck;
+            if(worked < CHECK_INTERVAL) return;
+
+            long start = now;
+            try {
+                while(isLagging()) {
+                    if(pausedSince < 0) pausedSince = now;
+                    if(now - pausedSince >= maxPause) {
+                        // Lagged for too long, give it the same time as zipping did
+                        Thread.sleep(worked);
+                        break;
+                    }
+                    Thread.sleep(PAUSE_STEP);
+                    now = System.currentTimeMillis();
+                }
+                if(!isLagging()) pausedSince = -1;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Zipping interrupted");
+            }
+
+            now = System.currentTimeMillis();
+            pausedTime.inc(now - start);
+            lastCheck = now;
+        }
+    }
+}
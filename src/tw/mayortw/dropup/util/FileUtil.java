@@ -8,72 +8,87 @@ package tw.mayortw.dropup.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.stream.Stream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public class FileUtil {
 
+    // Files larger than this are copied with FileChannel.transferTo
+    private static final long TRANSFER_THRESHOLD = 1024 * 1024;
+    // Files at least this big are memory mapped when zipped, in windows of MAP_WINDOW
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    // Files written more recently than this (ms) may still be changing, so they aren't mapped
+    private static final long MAP_QUIET_TIME = 5000;
+    // Windows can't move or delete a file while it's mapped, which would break restoring
+    private static final boolean MAP_FILES = !System.getProperty("os.name", "").startsWith("Windows");
+    private static final int COPY_THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
     public static void zipFiles(File zip, File srcFiles) throws IOException {
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
-        ZipFiles(out, srcFiles, new StringBuilder());
-        out.close();
+        zipFiles(new FileOutputStream(zip), srcFiles, null);
     }
 
     public static void zipFiles(OutputStream zipOut, File srcFiles) throws IOException {
-        ZipOutputStream out = new ZipOutputStream(zipOut);
-        ZipFiles(out, srcFiles, new StringBuilder());
-        out.close();
+        zipFiles(zipOut, srcFiles, null);
     }
 
-    private static void ZipFiles(ZipOutputStream out, File srcFiles, StringBuilder zipFiles)
-            throws IOException {
-            try {
-                if (srcFiles.isDirectory()) {
-                    Stream.of(srcFiles.listFiles()).forEach(files -> {
-                        try {
-                            if (files.isDirectory()) {
-                                StringBuilder zipFiless = new StringBuilder(zipFiles);
-                                zipFiless.append(files.getName()).append(File.separator);
-                                out.putNextEntry(new ZipEntry(zipFiless.toString()));
-                                ZipFiles(out, files, zipFiless);
-                            } else {
-                                ZipFiles(out, files, zipFiles);
-                            }
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                } else if (srcFiles.isFile()) {
-                    byte[] buf = new byte[1024];
-                    try (FileInputStream in = new FileInputStream(srcFiles)) {
-                        out.putNextEntry(new ZipEntry(new StringBuilder(zipFiles).append(srcFiles.getName()).toString()));
-                        int len;
-                        while ((len = in.read(buf)) > 0) {
-                            out.write(buf, 0, len);
-                        }
-                    } finally {
-                        out.closeEntry();
-                    }
-                }
-            } catch(RuntimeException e) {
-                Throwable cause = e.getCause();
-                if(cause instanceof IOException) {
-                    throw (IOException) cause;
-                } else {
-                    throw e;
-                }
-            }
+    /*
+     * Records where each entry starts in index if it's not null
+     * There's no zip comment so the end record is always the last bytes of the file
+     */
+    public static void zipFiles(OutputStream zipOut, File srcFiles, ZipIndex index) throws IOException {
+        zipFiles(zipOut, srcFiles, index, null);
+    }
+
+    // transformer can change how some files are written, or null to write them all as is
+    public static void zipFiles(OutputStream zipOut, File srcFiles, ZipIndex index, EntryTransformer transformer) throws IOException {
+        zipFiles(zipOut, srcFiles, index, transformer, PathFilter.ALL);
+    }
+
+    // Only files the filter accepts are zipped
+    public static void zipFiles(OutputStream zipOut, File srcFiles, ZipIndex index, EntryTransformer transformer, PathFilter filter) throws IOException {
+        zipFiles(zipOut, srcFiles, index, transformer, filter, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    // level is a Deflater level, 0 to only store
+    public static void zipFiles(OutputStream zipOut, File srcFiles, ZipIndex index, EntryTransformer transformer, PathFilter filter, int level) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(zipOut);
+        ZipOutputStream out = new ZipOutputStream(counter);
+        out.setLevel(level);
+        Files.walkFileTree(srcFiles.toPath(), new ZipWalker(srcFiles.toPath(), out, index, counter, transformer, filter));
+        out.close();
     }
 
     public static void unzipFiles(File file, Path dest) throws IOException {
@@ -106,33 +121,201 @@ public class FileUtil {
     }
 
     public static void copyDirectory(File source, File target) throws IOException {
-        if (!target.exists()) {
-            target.mkdir();
-        }
+        Path from = source.toPath();
+        Path to = target.toPath();
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /*
+     * Move a directory to target, which must not exist
+     * Renames it when possible, otherwise copies it in parallel on pool then deletes the source
+     */
+    public static void moveDirectory(Path source, Path target, ExecutorService pool) throws IOException {
         try {
-            Stream.of(source.listFiles()).forEach(f -> {
-                try {
-                    if (f.isFile()) {
-                        Files.copy(Paths.get(source.getAbsolutePath() + "/" + f.getName()),
-                                Paths.get(target.getAbsolutePath() + "/" + f.getName()));
-                    }
-                    if (f.isDirectory()) {
-                        File sourceDemo = new File(source.getAbsolutePath() + "/" + f.getName());
-                        File destDemo = new File(target.getAbsolutePath() + "/" + f.getName());
-                        copyDirectory(sourceDemo, destDemo);
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch(AtomicMoveNotSupportedException e) {
+            // On different file systems, have to copy it
+        }
+
+        copyDirectoryParallel(source, target, pool);
+        deleteDirectory(source);
+    }
+
+    /*
+     * Copy a directory with up to COPY_THREADS tasks on pool
+     * The folders are made and the files listed first, then the tasks take
+     * files from the list until it's empty
+     * Large files are transferred by the OS without going through the heap
+     */
+    public static void copyDirectoryParallel(Path source, Path target, ExecutorService pool) throws IOException {
+        List<FileCopy> files = new ArrayList<>();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                files.add(new FileCopy(file, target.resolve(source.relativize(file).toString()), attrs.size()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Void>> copiers = new ArrayList<>();
+        for(int i = 0; i < Math.min(COPY_THREADS, files.size()); i++) {
+            copiers.add(pool.submit(() -> {
+                int n;
+                while(!failed.get() && (n = next.getAndIncrement()) < files.size()) {
+                    FileCopy file = files.get(n);
+                    try {
+                        copyFile(file.source, file.target, file.size);
+                    } catch(IOException e) {
+                        failed.set(true);
+                        throw e;
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
-            });
-        } catch(RuntimeException e) {
-            Throwable cause = e.getCause();
-            if(cause instanceof IOException) {
-                throw (IOException) cause;
-            } else {
-                throw e;
+                return null;
+            }));
+        }
+
+        // Wait for all of them so nothing is still writing when this returns
+        IOException error = null;
+        for(Future<Void> copier : copiers) {
+            try {
+                copier.get();
+            } catch(ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(error == null)
+                    error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch(InterruptedException e) {
+                failed.set(true);
+                Thread.currentThread().interrupt();
+                throw new IOException("Copy interrupted");
             }
         }
+        if(error != null) throw error;
+    }
+
+    private static class FileCopy {
+        final Path source;
+        final Path target;
+        final long size;
+
+        FileCopy(Path source, Path target, long size) {
+            this.source = source;
+            this.target = target;
+            this.size = size;
+        }
+    }
+
+    private static void copyFile(Path source, Path target, long size) throws IOException {
+        if(size < TRANSFER_THRESHOLD) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long length = in.size();
+            long pos = 0;
+            while(pos < length) {
+                pos += in.transferTo(pos, length - pos, out);
+            }
+        }
+    }
+
+    // Backups are checked with SHA-256, stored as hex in the "sha256" property
+    public static final String CHECKSUM_PROPERTY = "sha256";
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Read the rest of the stream, so a digest over it sees every byte
+    public static long drain(InputStream in) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long total = 0;
+        int len;
+        while((len = in.read(buf)) >= 0)
+            total += len;
+        return total;
+    }
+
+    // Bytes to lower case hex string
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // Folders the fingerprint looks in, at any depth for DIM-1/region and such
+    private static final Set<String> FINGERPRINT_FOLDERS = new HashSet<>(Arrays.asList("region", "entities", "poi", "data"));
+    // Saved every time even if nothing happened
+    private static final Set<String> FINGERPRINT_SKIPPED = new HashSet<>(Arrays.asList("raids.dat", "raids_end.dat"));
+
+    /*
+     * Hash of the names, sizes and modified times of the files a world's
+     * blocks, entities and map data are in, if the filter accepts them
+     * Only file attributes are read, so it's cheap but still changes whenever
+     * one of them is written
+     * Files the server writes on every save, like level.dat and player data,
+     * aren't in it, or it would always change
+     */
+    public static String fingerprint(Path dir, PathFilter filter) throws IOException {
+        List<String> files = new ArrayList<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) {
+                if(subDir.equals(dir)) return FileVisitResult.CONTINUE;
+                String name = dir.relativize(subDir).toString().replace(File.separatorChar, '/');
+                return filter.isExcluded(name) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path relative = dir.relativize(file);
+                Path folder = relative.getParent();
+                if(folder == null || !FINGERPRINT_FOLDERS.contains(folder.getFileName().toString())
+                        || FINGERPRINT_SKIPPED.contains(file.getFileName().toString()))
+                    return FileVisitResult.CONTINUE;
+
+                String name = relative.toString().replace(File.separatorChar, '/');
+                if(filter.accept(name))
+                    files.add(name + '\t' + attrs.size() + '\t' + attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Walk order isn't guaranteed
+        Collections.sort(files);
+        MessageDigest digest = newDigest();
+        for(String file : files)
+            digest.update((file + '\n').getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
     }
 
     public static void deleteDirectory(File temp) throws IOException {
@@ -154,4 +337,162 @@ public class FileUtil {
             }
         });
     }
+
+    /*
+     * Changes how some files are written to a zip
+     * rename returns the entry name to use, or null to zip the file as is
+     * write is only called for the renamed ones, and mustn't close out
+     */
+    public static interface EntryTransformer {
+        public String rename(String name);
+        public void write(File file, String name, OutputStream out) throws IOException;
+    }
+
+    /*
+     * Writes every file it visits to the zip
+     * Entries are named from the walk's relative paths and its attributes
+     * decide what's a file, so nothing is looked up twice
+     */
+    private static class ZipWalker extends SimpleFileVisitor<Path> {
+        private Path root;
+        private ZipOutputStream out;
+        private ZipIndex index;
+        private CountingOutputStream counter;
+        private EntryTransformer transformer;
+        private PathFilter filter;
+        private ByteBuffer buf = ByteBuffer.allocate(64 * 1024); // used for every file
+
+        ZipWalker(Path root, ZipOutputStream out, ZipIndex index, CountingOutputStream counter,
+                EntryTransformer transformer, PathFilter filter) {
+            this.root = root;
+            this.out = out;
+            this.index = index;
+            this.counter = counter;
+            this.transformer = transformer;
+            this.filter = filter;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            if(dir.equals(root)) return FileVisitResult.CONTINUE;
+            String name = entryName(dir);
+            if(filter.isExcluded(name)) return FileVisitResult.SKIP_SUBTREE;
+
+            ZipEntry entry = new ZipEntry(name + '/'); // Zip always uses '/'
+            long offset = counter.getCount();
+            out.putNextEntry(entry);
+            out.closeEntry();
+            if(index != null) index.add(entry, offset);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            if(!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+            String name = entryName(file);
+            if(!filter.accept(name)) return FileVisitResult.CONTINUE;
+
+            String rename = transformer != null ? transformer.rename(name) : null;
+            ZipEntry entry = new ZipEntry(rename != null ? rename : name);
+            long offset = counter.getCount();
+            if(rename != null) {
+                try {
+                    out.putNextEntry(entry);
+                    transformer.write(file.toFile(), name, out);
+                } finally {
+                    out.closeEntry();
+                }
+            } else {
+                FileChannel in;
+                try {
+                    in = FileChannel.open(file, StandardOpenOption.READ);
+                } catch(NoSuchFileException e) {
+                    // Deleted by the server since it was listed, nothing's written for it yet
+                    return FileVisitResult.CONTINUE;
+                }
+                try(FileChannel channel = in) {
+                    out.putNextEntry(entry);
+                    if(canMap(channel, attrs))
+                        writeMapped(channel, attrs.size());
+                    else
+                        writeRead(channel);
+                } finally {
+                    out.closeEntry();
+                }
+            }
+            if(index != null) index.add(entry, offset);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+            // Deleted by the server while zipping
+            if(e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+            throw e;
+        }
+
+        /*
+         * Big files that aren't being written are mapped instead of read, which
+         * saves a copy and a syscall for every buffer
+         * A file the server might still be writing is read normally
+         */
+        private boolean canMap(FileChannel in, BasicFileAttributes attrs) throws IOException {
+            if(!MAP_FILES || attrs.size() < MAP_THRESHOLD) return false;
+            if(System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() < MAP_QUIET_TIME) return false;
+            return in.size() == attrs.size();
+        }
+
+        private void writeMapped(FileChannel in, long size) throws IOException {
+            byte[] bytes = buf.array();
+            try {
+                for(long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+                    while(map.hasRemaining()) {
+                        int len = Math.min(map.remaining(), bytes.length);
+                        map.get(bytes, 0, len);
+                        out.write(bytes, 0, len);
+                    }
+                }
+            } catch(InternalError e) { // Reading past the end of a mapped file that got truncated
+                throw new IOException("File was truncated while zipping", e);
+            }
+        }
+
+        private void writeRead(FileChannel in) throws IOException {
+            buf.clear();
+            while(in.read(buf) >= 0) {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+
+        private String entryName(Path path) {
+            return root.relativize(path).toString().replace(File.separatorChar, '/');
+        }
+    }
+
+    // Counts bytes written so zip entry offsets are known
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
 }
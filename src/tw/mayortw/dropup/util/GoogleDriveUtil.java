@@ -3,8 +3,12 @@ package tw.mayortw.dropup.util;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.gson.*;
 
@@ -16,23 +20,26 @@ import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.util.EntityUtils;
 
 import tw.mayortw.dropup.Secret;
 
-public class GoogleDriveUtil {
+public class GoogleDriveUtil implements StorageBackend {
 
     private static final String OAUTH_URL = "https://oauth2.googleapis.com/token";
     private static final String DRIVE_URL = "https://www.googleapis.com/drive/v3";
     private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v3/files";
 
+    private static final Metrics.Counter requests = Metrics.counter("dropup_drive_requests_total", "Requests sent to Google Drive");
+    private static final Metrics.Counter errors = Metrics.counter("dropup_drive_errors_total", "Google Drive requests that failed or returned an error");
+
     private String redirectUrl = "https://mayortw.github.io/World-Dropup//code.html";
     private String token;
     private String refreshToken;
     private long tokenExpire;
 
-    private HttpClient http = HttpClientBuilder.create().build();
+    // Backup volumes are uploaded in parallel, the default only allows 2 connections
+    private HttpClient http = HttpClientBuilder.create().setMaxConnPerRoute(16).setMaxConnTotal(32).build();
 
     public GoogleDriveUtil() {}
 
@@ -108,6 +115,7 @@ public class GoogleDriveUtil {
         }
     }
 
+    @Override
     public List<String> listFileNames(String path) throws GoogleDriveException {
         List<String> names = new ArrayList<>();
         String id = findPathId(path);
@@ -134,7 +142,8 @@ public class GoogleDriveUtil {
     }
 
     // Returns filename
-    public String upload(String path, String name, InputStream stream) throws GoogleDriveException {
+    @Override
+    public String upload(String path, String name, InputStream stream, long length, Map<String, String> properties) throws GoogleDriveException {
 
         String parentId = findPathId(path, true);
 
@@ -145,11 +154,16 @@ public class GoogleDriveUtil {
         parents.add(parentId);
         meta.add("parents", parents);
 
+        // Properties are stored in appProperties
+        if(!properties.isEmpty()) {
+            JsonObject appProperties = new JsonObject();
+            for(Map.Entry<String, String> prop : properties.entrySet())
+                appProperties.addProperty(prop.getKey(), prop.getValue());
+            meta.add("appProperties", appProperties);
+        }
+
         JsonObject json = toJson(sendRequest(authorized("POST", UPLOAD_URL + "?uploadType=multipart") // Maybe try resumable in the future
-                .setEntity(MultipartEntityBuilder.create()
-                    .addTextBody("meta", meta.toString(), ContentType.APPLICATION_JSON)
-                    .addBinaryBody("file", stream, ContentType.APPLICATION_OCTET_STREAM, name)
-                    .build())));
+                .setEntity(new MultipartStreamEntity(meta.toString(), stream, length))));
 
         try {
             return json.getAsJsonPrimitive("name").getAsString();
@@ -158,23 +172,93 @@ public class GoogleDriveUtil {
         }
     }
 
+    @Override
+    public FileInfo getFileInfo(String path) throws GoogleDriveException {
+        String id = findPathId(path);
+        if(id == null) return null;
+
+        JsonObject json = toJson(sendRequest(authorized("GET", DRIVE_URL + "/files/" + id)
+                    .addParameter("fields", "name,size,modifiedTime,mimeType,appProperties")));
+
+        try {
+            String name = json.getAsJsonPrimitive("name").getAsString();
+            boolean directory = json.getAsJsonPrimitive("mimeType").getAsString().equals("application/vnd.google-apps.folder");
+
+            long size = -1;
+            if(json.has("size"))
+                size = json.getAsJsonPrimitive("size").getAsLong();
+
+            long modified = 0;
+            if(json.has("modifiedTime"))
+                modified = Instant.parse(json.getAsJsonPrimitive("modifiedTime").getAsString()).toEpochMilli();
+
+            Map<String, String> properties = new HashMap<>();
+            if(json.has("appProperties")) {
+                for(Map.Entry<String, JsonElement> prop : json.getAsJsonObject("appProperties").entrySet())
+                    properties.put(prop.getKey(), prop.getValue().getAsString());
+            }
+
+            return new FileInfo(name, size, modified, directory, properties);
+        } catch(NullPointerException | NumberFormatException | DateTimeParseException e) {
+            throw new GoogleDriveException(e);
+        }
+    }
+
     public void download(String path, OutputStream stream) throws GoogleDriveException, IOException {
         downloadEntity(path).writeTo(stream);
     }
 
+    @Override
     public InputStream download(String path) throws GoogleDriveException, IOException {
         return downloadEntity(path).getContent();
     }
 
+    @Override
+    public InputStream download(String path, long offset, long length) throws GoogleDriveException, IOException {
+        String range = "bytes=" + offset + "-" + (length >= 0 ? String.valueOf(offset + length - 1) : "");
+        HttpResponse res = downloadResponse(path, range);
+        InputStream in = res.getEntity().getContent();
+        if(res.getStatusLine().getStatusCode() == 206) return in;
+
+        // Range was ignored and it's the whole file, skip to the offset
+        try {
+            for(long left = offset; left > 0; ) {
+                long skipped = in.skip(left);
+                if(skipped <= 0) {
+                    if(in.read() < 0)
+                        throw new IOException("File is shorter than offset " + offset + ": " + path);
+                    skipped = 1;
+                }
+                left -= skipped;
+            }
+        } catch(IOException e) {
+            in.close();
+            throw e;
+        }
+        return length >= 0 ? new RangeInputStream(in, length) : in;
+    }
+
     private HttpEntity downloadEntity(String path) throws GoogleDriveException {
+        return downloadResponse(path, null).getEntity();
+    }
+
+    // range is the value of Range header, or null for the whole file
+    private HttpResponse downloadResponse(String path, String range) throws GoogleDriveException {
         String id = findPathId(path);
+        if(id == null)
+            throw new GoogleDriveException("File not found: " + path);
+
+        RequestBuilder rb = authorized("GET", DRIVE_URL + "/files/" + id)
+            .addParameter("alt", "media");
+        if(range != null)
+            rb.addHeader("Range", range);
 
-        HttpResponse res = sendRequest(authorized("GET", DRIVE_URL + "/files/" + id)
-                .addParameter("alt", "media"));
+        HttpResponse res = sendRequest(rb);
         HttpEntity entity = res.getEntity();
 
         // Handle API error
-        if(res.getStatusLine().getStatusCode() != 200) {
+        int status = res.getStatusLine().getStatusCode();
+        if(status != 200 && status != 206) {
             String msg = "";
             try {
                 msg = getAPIError(EntityUtils.toString(entity));
@@ -182,9 +266,10 @@ public class GoogleDriveUtil {
             throw new GoogleDriveException(msg);
         }
 
-        return entity;
+        return res;
     }
 
+    @Override
     public void deleteFile(String path) throws GoogleDriveException {
         String id = findPathId(path);
         if(id != null) {
@@ -258,9 +343,14 @@ public class GoogleDriveUtil {
     }
 
     private HttpResponse sendRequest(RequestBuilder rb) throws GoogleDriveException {
+        requests.inc();
         try {
-            return http.execute(rb.build());
+            HttpResponse res = http.execute(rb.build());
+            if(res.getStatusLine().getStatusCode() >= 400)
+                errors.inc();
+            return res;
         } catch(IOException e) {
+            errors.inc();
             throw new GoogleDriveException(e);
         }
     }
@@ -302,7 +392,7 @@ public class GoogleDriveUtil {
     }
 
 
-    public static class GoogleDriveException extends Exception {
+    public static class GoogleDriveException extends StorageException {
         static private final long serialVersionUID = 0;
 
         public GoogleDriveException(String msg) {
@@ -17,6 +17,7 @@ public class LimitedInputStream extends FilterInputStream {
 
     private double available = 0;
     private long lastRead = 0;
+    private volatile long transferred = 0;
 
     /*
      * limit here is in kb/s
@@ -37,18 +38,24 @@ public class LimitedInputStream extends FilterInputStream {
         return limit;
     }
 
+    // Bytes read so far
+    public long getTransferred() {
+        return transferred;
+    }
+
     @Override
-    public synchronized int read() throws IOException {
-        while(true) {
-            int b = tryRead();
-            if(b >= -1) return b;
+    public int read() throws IOException {
+        while(take(1) == 0) {
             try {
                 Thread.sleep(10);
             } catch(InterruptedException e) {}
         }
+        int b = super.read();
+        if(b >= 0) transferred++;
+        return b;
     }
 
-    // Using InputStream's read(byte[], int, int) method
+    // Reads as much as the limit allows at once instead of byte by byte
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         if (b == null) {
@@ -59,43 +66,41 @@ public class LimitedInputStream extends FilterInputStream {
             return 0;
         }
 
-        int c = read();
-        if (c == -1) {
-            return -1;
-        }
-        b[off] = (byte)c;
-
-        int i = 1;
-        for (; i < len ; i++) {
-            c = read();
-            if (c == -1) {
-                break;
-            }
-            b[off + i] = (byte)c;
+        int allowed;
+        while((allowed = take(len)) == 0) {
+            try {
+                Thread.sleep(10);
+            } catch(InterruptedException e) {}
         }
-        return i;
+
+        int read = super.read(b, off, allowed);
+        if(read > 0) transferred += read;
+        // Give back what wasn't read
+        if(read < allowed) giveBack(allowed - Math.max(read, 0));
+        return read;
     }
 
     /*
-     * returns -2 if read should be waiting
+     * Number of bytes that can be read now, up to max
+     * returns 0 if read should be waiting
      */
-    private int tryRead() throws IOException {
+    private synchronized int take(int max) {
         if(limit <= 0) {
-            return super.read(); // negative limit = no limit
+            return max; // negative limit = no limit
         }
 
         long now = System.currentTimeMillis();
 
         available += (double) (now - lastRead) / interval * limit;
         if(available > limit) available = limit;
+        lastRead = now;
 
-        if(available >= 1) {
-            int b = super.read();
-            available--;
-            lastRead = now;
-            return b;
-        }
+        int allowed = (int) Math.min(max, available);
+        available -= allowed;
+        return allowed;
+    }
 
-        return -2;
+    private synchronized void giveBack(int bytes) {
+        if(limit > 0) available += bytes;
     }
 }
@@ -0,0 +1,166 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/*
+ * Stores backups in a local or network mounted directory
+ * Files are written to a temporary name then renamed, so a half written
+ * backup never shows up in the list
+ */
+public class LocalStorage implements StorageBackend {
+
+    private static final String TEMP_PREFIX = ".uploading-";
+    private static final String PROPERTIES_PREFIX = ".properties-";
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    private Path root;
+
+    public LocalStorage(Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public String upload(String path, String name, InputStream stream, long length, Map<String, String> properties) throws StorageException {
+        Path dir = resolve(path);
+        Path temp = dir.resolve(TEMP_PREFIX + name);
+        Path target = dir.resolve(name);
+
+        try {
+            Files.createDirectories(dir);
+
+            // Properties go in a hidden file next to it, written first so they're there when the file shows up
+            Path propFile = dir.resolve(PROPERTIES_PREFIX + name);
+            if(properties.isEmpty()) {
+                Files.deleteIfExists(propFile);
+            } else {
+                Properties props = new Properties();
+                props.putAll(properties);
+                try(OutputStream out = Files.newOutputStream(propFile)) {
+                    props.store(out, null);
+                }
+            }
+
+            try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    ReadableByteChannel in = Channels.newChannel(stream)) {
+                long pos = 0;
+                long read;
+                while((read = out.transferFrom(in, pos, TRANSFER_SIZE)) > 0) {
+                    pos += read;
+                }
+                out.force(true);
+            }
+
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return name;
+        } catch(IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch(IOException e1) {}
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public InputStream download(String path) throws StorageException, IOException {
+        return download(path, 0, -1);
+    }
+
+    @Override
+    public InputStream download(String path, long offset, long length) throws StorageException, IOException {
+        Path file = resolve(path);
+        if(!Files.isRegularFile(file))
+            throw new StorageException("File not found: " + path);
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(offset);
+        InputStream in = Channels.newInputStream(channel);
+        return length < 0 ? in : new RangeInputStream(in, length);
+    }
+
+    @Override
+    public List<String> listFileNames(String path) throws StorageException {
+        Path dir = resolve(path);
+        List<String> names = new ArrayList<>();
+        if(!Files.isDirectory(dir)) return names;
+
+        try(Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                .filter(n -> !n.startsWith(TEMP_PREFIX) && !n.startsWith(PROPERTIES_PREFIX))
+                .forEach(names::add);
+        } catch(IOException e) {
+            throw new StorageException(e);
+        }
+        return names;
+    }
+
+    @Override
+    public void deleteFile(String path) throws StorageException {
+        Path file = resolve(path);
+        try {
+            if(Files.isDirectory(file))
+                FileUtil.deleteDirectory(file);
+            else
+                Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(PROPERTIES_PREFIX + file.getFileName()));
+        } catch(IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public FileInfo getFileInfo(String path) throws StorageException {
+        Path file = resolve(path);
+        if(!Files.exists(file)) return null;
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+            Map<String, String> properties = new HashMap<>();
+            Path propFile = file.resolveSibling(PROPERTIES_PREFIX + file.getFileName());
+            if(Files.isRegularFile(propFile)) {
+                Properties props = new Properties();
+                try(InputStream in = Files.newInputStream(propFile)) {
+                    props.load(in);
+                }
+                for(String key : props.stringPropertyNames())
+                    properties.put(key, props.getProperty(key));
+            }
+
+            return new FileInfo(file.getFileName().toString(), attrs.isDirectory() ? -1 : attrs.size(),
+                    attrs.lastModifiedTime().toMillis(), attrs.isDirectory(), properties);
+        } catch(IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    // Make drive style path relative to root
+    private Path resolve(String path) throws StorageException {
+        Path resolved = root;
+        for(String part : path.split("/")) {
+            if(part.equals("") || part.equals(".")) continue;
+            if(part.equals("..")) throw new StorageException("Invalid path: " + path);
+            resolved = resolved.resolve(part);
+        }
+        return resolved;
+    }
+}
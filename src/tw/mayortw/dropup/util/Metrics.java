@@ -0,0 +1,209 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+
+/*
+ * Simple counters, gauges and histograms
+ * that can be written in Prometheus text exposition format
+ */
+public class Metrics {
+
+    // In seconds
+    public static final double[] TIME_BUCKETS = {
+        0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 1800, 3600
+    };
+
+    private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public static Counter counter(String name, String help) {
+        return (Counter) metrics.computeIfAbsent(name, n -> new Counter(n, help));
+    }
+
+    /*
+     * Register a gauge, replacing the old supplier if there is one
+     */
+    public static Gauge gauge(String name, String help, DoubleSupplier value) {
+        Gauge gauge = (Gauge) metrics.computeIfAbsent(name, n -> new Gauge(n, help));
+        gauge.value = value;
+        return gauge;
+    }
+
+    public static Histogram histogram(String name, String help, double[] buckets) {
+        return (Histogram) metrics.computeIfAbsent(name, n -> new Histogram(n, help, buckets));
+    }
+
+    public static Histogram timer(String name, String help) {
+        return histogram(name, help, TIME_BUCKETS);
+    }
+
+    // All metrics in text exposition format
+    public static String export() {
+        StringBuilder out = new StringBuilder();
+        for(Metric metric : metrics.values()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    private static String format(double value) {
+        if(Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    public static abstract class Metric {
+        protected final String name;
+        protected final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+        abstract void write(StringBuilder out);
+    }
+
+    public static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void inc(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(name).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    public static class Gauge extends Metric {
+        private volatile DoubleSupplier value = () -> 0;
+
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        public double get() {
+            return value.getAsDouble();
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(name).append(' ').append(format(get())).append('\n');
+        }
+    }
+
+    public static class Histogram extends Metric {
+        private final double[] buckets;
+        private final AtomicLongArray counts; // Not cumulative, last one is +Inf
+        private final DoubleAdder sum = new DoubleAdder();
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong(Double.doubleToLongBits(0));
+
+        Histogram(String name, String help, double[] buckets) {
+            super(name, help);
+            this.buckets = buckets.clone();
+            this.counts = new AtomicLongArray(buckets.length + 1);
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while(i < buckets.length && value > buckets[i]) i++;
+            counts.incrementAndGet(i);
+            sum.add(value);
+            count.incrementAndGet();
+            max.accumulateAndGet(Double.doubleToLongBits(value),
+                    (a, b) -> Double.longBitsToDouble(b) > Double.longBitsToDouble(a) ? b : a);
+        }
+
+        // Record time since start, which is from System.nanoTime()
+        public void observeSince(long start) {
+            observe((System.nanoTime() - start) / 1e9);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+
+        public double getMax() {
+            return Double.longBitsToDouble(max.get());
+        }
+
+        /*
+         * Estimate the q quantile (0 to 1) by interpolating inside the bucket
+         */
+        public double percentile(double q) {
+            long total = count.get();
+            if(total == 0) return 0;
+
+            double rank = q * total;
+            long cumulative = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                long c = counts.get(i);
+                if(c > 0 && cumulative + c >= rank) {
+                    double lower = i == 0 ? 0 : buckets[i - 1];
+                    double estimate = lower + (buckets[i] - lower) * (rank - cumulative) / c;
+                    return Math.min(estimate, getMax());
+                }
+                cumulative += c;
+            }
+            return getMax();
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            long cumulative = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                cumulative += counts.get(i);
+                out.append(name).append("_bucket{le=\"").append(format(buckets[i])).append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            cumulative += counts.get(buckets.length);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(format(sum.sum())).append('\n');
+            out.append(name).append("_count ").append(count.get()).append('\n');
+        }
+    }
+}
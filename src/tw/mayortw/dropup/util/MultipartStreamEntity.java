@@ -0,0 +1,82 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/*
+ * multipart/related body of JSON metadata and a file stream, for Drive uploads
+ * The file is copied in large blocks straight to the connection, so a slow
+ * stream isn't read a few bytes at a time. Sent with Content-Length if the
+ * file size is known, or chunked if it isn't
+ */
+public class MultipartStreamEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private byte[] head;
+    private byte[] tail;
+    private InputStream stream;
+    private long length;
+
+    // length is the size of the file, or -1 if unknown
+    public MultipartStreamEntity(String metaJson, InputStream stream, long length) {
+        String boundary = "dropup-" + UUID.randomUUID();
+        this.head = ("--" + boundary + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n\r\n"
+                + metaJson + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        this.tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        this.stream = stream;
+        this.length = length;
+
+        setContentType("multipart/related; boundary=" + boundary);
+        setChunked(length < 0);
+    }
+
+    @Override
+    public long getContentLength() {
+        return length < 0 ? -1 : head.length + length + tail.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(head);
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0;
+        int len;
+        while((len = stream.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+            total += len;
+        }
+        if(length >= 0 && total != length)
+            throw new IOException("Expected " + length + " bytes but got " + total);
+
+        out.write(tail);
+        out.flush();
+    }
+
+    @Override
+    public InputStream getContent() {
+        throw new UnsupportedOperationException("Streaming entity can only be written");
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+}
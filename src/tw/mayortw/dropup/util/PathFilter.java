@@ -0,0 +1,74 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Glob include and exclude rules for files in a world folder
+ * Paths are relative to the world folder and use '/'
+ * A pattern without '/' matches the file name in any folder, like session.lock
+ * An excluded folder is skipped with everything in it
+ * If there are include patterns, only files matching one of them are kept
+ */
+public class PathFilter {
+
+    public static final PathFilter ALL = new PathFilter(Collections.emptyList(), Collections.emptyList());
+
+    private List<Rule> include = new ArrayList<>();
+    private List<Rule> exclude = new ArrayList<>();
+
+    public PathFilter(List<String> include, List<String> exclude) {
+        FileSystem fs = FileSystems.getDefault();
+        for(String pattern : include)
+            this.include.add(new Rule(fs, pattern));
+        for(String pattern : exclude)
+            this.exclude.add(new Rule(fs, pattern));
+    }
+
+    // Checked before anything else is known about the path, so excluded folders are never read
+    public boolean isExcluded(String path) {
+        return matches(exclude, path);
+    }
+
+    // For files that aren't excluded
+    public boolean isIncluded(String path) {
+        return include.isEmpty() || matches(include, path);
+    }
+
+    public boolean accept(String path) {
+        return !isExcluded(path) && isIncluded(path);
+    }
+
+    private static boolean matches(List<Rule> rules, String path) {
+        if(rules.isEmpty()) return false;
+        Path full = Paths.get(path);
+        Path name = full.getFileName();
+        for(Rule rule : rules) {
+            if(rule.matcher.matches(rule.nameOnly ? name : full))
+                return true;
+        }
+        return false;
+    }
+
+    private static class Rule {
+        PathMatcher matcher;
+        boolean nameOnly;
+
+        Rule(FileSystem fs, String pattern) {
+            // Trailing '/' is how people write folders, the match is the same
+            while(pattern.endsWith("/") && pattern.length() > 1)
+                pattern = pattern.substring(0, pattern.length() - 1);
+            nameOnly = pattern.indexOf('/') < 0;
+            matcher = fs.getPathMatcher("glob:" + pattern);
+        }
+    }
+}
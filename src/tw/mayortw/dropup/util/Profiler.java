@@ -0,0 +1,56 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Timings of work done in the server thread
+ * Each section is a Metrics histogram so they also show up on the metrics endpoint
+ */
+public class Profiler {
+
+    // In seconds, from 1us to 60s
+    private static final double[] BUCKETS = {
+        1e-6, 2e-6, 5e-6, 1e-5, 2e-5, 5e-5, 1e-4, 2e-4, 5e-4,
+        0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5,
+        1, 2, 5, 10, 30, 60
+    };
+
+    private static final Map<String, Metrics.Histogram> sections = new ConcurrentSkipListMap<>();
+
+    public static Metrics.Histogram section(String name, String help) {
+        return sections.computeIfAbsent(name, n ->
+                Metrics.histogram("dropup_main_" + n + "_seconds", help, BUCKETS));
+    }
+
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for(Map.Entry<String, Metrics.Histogram> section : sections.entrySet()) {
+            Metrics.Histogram hist = section.getValue();
+            long count = hist.getCount();
+            if(count == 0) continue;
+
+            lines.add(String.format("%s §7x%d §favg %s p50 %s p95 %s p99 %s max %s 總共 %s",
+                        section.getKey(), count,
+                        formatTime(hist.getSum() / count),
+                        formatTime(hist.percentile(0.5)),
+                        formatTime(hist.percentile(0.95)),
+                        formatTime(hist.percentile(0.99)),
+                        formatTime(hist.getMax()),
+                        formatTime(hist.getSum())));
+        }
+        return lines;
+    }
+
+    // Seconds to human readable time
+    private static String formatTime(double secs) {
+        if(secs < 1e-3) return String.format("%.1fus", secs * 1e6);
+        if(secs < 1) return String.format("%.2fms", secs * 1e3);
+        return String.format("%.2fs", secs);
+    }
+}
@@ -0,0 +1,48 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+/*
+ * Reads at most length bytes of the stream
+ */
+public class RangeInputStream extends FilterInputStream {
+    private long left;
+
+    public RangeInputStream(InputStream in, long length) {
+        super(in);
+        this.left = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(left <= 0) return -1;
+        int b = super.read();
+        if(b >= 0) left--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(left <= 0) return -1;
+        int read = super.read(b, off, (int) Math.min(len, left));
+        if(read > 0) left -= read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, left));
+        left -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), left);
+    }
+}
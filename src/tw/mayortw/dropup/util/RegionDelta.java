@@ -0,0 +1,421 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/*
+ * Delta encoding of region files between backups
+ *
+ * A .mca file starts with 1024 chunk locations (3 byte sector offset and 1
+ * byte sector count) and 1024 chunk timestamps, 4KB each, then the chunks
+ * in 4KB sectors. Each chunk is compressed by itself, so a chunk that wasn't
+ * saved again is byte for byte the same.
+ *
+ * In a delta backup, region files the base backup has are stored as
+ * <name>.mca.delta, with only the chunks that changed since the base.
+ * The manifest remembers the timestamp and CRC of every chunk in the last
+ * backup so it doesn't have to be downloaded to compare.
+ */
+public class RegionDelta implements FileUtil.EntryTransformer {
+
+    public static final String DELTA_SUFFIX = ".delta";
+    // Storage property of a delta backup, the name of its base backup
+    public static final String BASE_PROPERTY = "delta_base";
+
+    private static final int SECTOR = 4096;
+    private static final int CHUNKS = 1024;
+    private static final int HEADER = SECTOR * 2;
+    private static final int DELTA_MAGIC = 0x44524431; // DRD1
+    private static final int MANIFEST_MAGIC = 0x44524d31; // DRM1
+
+    private static final int ABSENT = 0;
+    private static final int SAME = 1;
+    private static final int CHANGED = 2;
+
+    private Manifest base;
+    private Manifest manifest = new Manifest();
+    private long changedChunks = 0;
+    private long sameChunks = 0;
+
+    // base is null for a full backup, which still records the manifest
+    public RegionDelta(Manifest base) {
+        this.base = base;
+    }
+
+    public static boolean isRegionFile(String name) {
+        return name.endsWith(".mca");
+    }
+
+    // Manifest of what was written, to use as base of the next backup
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    public long getChangedChunks() {
+        return changedChunks;
+    }
+
+    public long getSameChunks() {
+        return sameChunks;
+    }
+
+    @Override
+    public String rename(String name) {
+        if(!isRegionFile(name)) return null;
+        if(base != null && base.regions.containsKey(name))
+            return name + DELTA_SUFFIX;
+        // Written as is, but read to fill in the manifest
+        return name;
+    }
+
+    /*
+     * Only the header and the chunks are read, one at a time, so a region
+     * file is never all in memory
+     */
+    @Override
+    public void write(File file, String name, OutputStream out) throws IOException {
+        try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            ByteBuffer header = readHeader(in);
+            RegionState state = new RegionState();
+            RegionState baseState = base != null ? base.regions.get(name) : null;
+            CRC32 crc = new CRC32();
+
+            if(baseState == null) {
+                copy(in, size, out);
+                for(int i = 0; i < CHUNKS; i++) {
+                    byte[] payload = payload(in, header, size, i);
+                    if(payload != null)
+                        record(state, header, i, payload, crc);
+                }
+                manifest.regions.put(name, state);
+                return;
+            }
+
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(DELTA_MAGIC);
+            byte[] timestamps = new byte[SECTOR];
+            if(header != null) {
+                header.position(SECTOR);
+                header.get(timestamps);
+            }
+            data.write(timestamps);
+
+            for(int i = 0; i < CHUNKS; i++) {
+                byte[] payload = payload(in, header, size, i);
+                if(payload == null) {
+                    data.writeByte(ABSENT);
+                    continue;
+                }
+                record(state, header, i, payload, crc);
+                if(baseState.crcs[i] == state.crcs[i] && baseState.timestamps[i] == state.timestamps[i]) {
+                    data.writeByte(SAME);
+                    sameChunks++;
+                } else {
+                    data.writeByte(CHANGED);
+                    data.writeInt(payload.length);
+                    data.write(payload);
+                    changedChunks++;
+                }
+            }
+            // Not closing it, that would close the zip
+            data.flush();
+            manifest.regions.put(name, state);
+        }
+    }
+
+    private static void record(RegionState state, ByteBuffer header, int i, byte[] payload, CRC32 crc) {
+        crc.reset();
+        crc.update(payload);
+        state.timestamps[i] = header.getInt(SECTOR + i * 4);
+        state.crcs[i] = crc.getValue();
+    }
+
+    /*
+     * Rebuild a region file from its base and a delta
+     * base doesn't have to exist if every chunk is new
+     * Chunks are written where they go as they're read, the header last
+     */
+    public static void applyDelta(InputStream delta, Path base, Path out) throws IOException {
+        DataInputStream data = new DataInputStream(delta);
+        if(data.readInt() != DELTA_MAGIC)
+            throw new IOException("Not a region delta: " + out.getFileName());
+        byte[] timestamps = new byte[SECTOR];
+        data.readFully(timestamps);
+
+        try(FileChannel baseIn = Files.exists(base) ? FileChannel.open(base, StandardOpenOption.READ) : null;
+                FileChannel file = FileChannel.open(out, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long baseSize = baseIn != null ? baseIn.size() : 0;
+            ByteBuffer baseHeader = baseIn != null ? readHeader(baseIn) : null;
+
+            ByteBuffer locations = ByteBuffer.allocate(SECTOR);
+            byte[] padding = new byte[SECTOR];
+            int sector = 2;
+            for(int i = 0; i < CHUNKS; i++) {
+                byte[] payload;
+                int state = data.readUnsignedByte();
+                switch(state) {
+                    case ABSENT:
+                        locations.putInt(0);
+                        continue;
+                    case SAME:
+                        payload = payload(baseIn, baseHeader, baseSize, i);
+                        if(payload == null)
+                            throw new IOException("Chunk " + i + " missing in base of " + out.getFileName());
+                        break;
+                    case CHANGED:
+                        payload = new byte[data.readInt()];
+                        data.readFully(payload);
+                        break;
+                    default:
+                        throw new IOException("Bad region delta: " + out.getFileName());
+                }
+
+                int sectors = (payload.length + SECTOR - 1) / SECTOR;
+                locations.putInt(sector << 8 | Math.min(sectors, 255));
+                long pos = (long) sector * SECTOR;
+                writeFully(file, ByteBuffer.wrap(payload), pos);
+                writeFully(file, ByteBuffer.wrap(padding, 0, sectors * SECTOR - payload.length), pos + payload.length);
+                sector += sectors;
+            }
+
+            writeFully(file, ByteBuffer.wrap(locations.array()), 0);
+            writeFully(file, ByteBuffer.wrap(timestamps), SECTOR);
+        }
+    }
+
+    /*
+     * Unzip a delta backup over the files of its base
+     * Files that aren't in the delta backup are deleted
+     */
+    public static void unzipDelta(InputStream in, Path dest) throws IOException {
+        Set<String> files = new HashSet<>();
+        ZipInputStream zipIn = new ZipInputStream(in);
+        // Entries are read by applyDelta, which shouldn't close the zip
+        InputStream entryIn = new FilterInputStream(zipIn) {
+            @Override
+            public void close() {}
+        };
+
+        ZipEntry entry;
+        while((entry = zipIn.getNextEntry()) != null) {
+            String name = entry.getName().replace('\\', '/');
+            if(name.endsWith("/")) {
+                Files.createDirectories(dest.resolve(name));
+                continue;
+            }
+
+            if(name.endsWith(DELTA_SUFFIX)) {
+                name = name.substring(0, name.length() - DELTA_SUFFIX.length());
+                Path file = dest.resolve(name);
+                Path temp = file.resolveSibling(file.getFileName() + ".dropup-tmp");
+                applyDelta(entryIn, file, temp);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Path file = dest.resolve(name);
+                Files.createDirectories(file.getParent());
+                Files.copy(entryIn, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            files.add(name);
+        }
+
+        // Anything else was deleted after the base backup
+        Files.walkFileTree(dest, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = dest.relativize(file).toString().replace(File.separatorChar, '/');
+                if(!files.contains(name))
+                    Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Chunk locations and timestamps, or null if the file is too short to have them
+    private static ByteBuffer readHeader(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        return readFully(in, header, 0) ? header : null;
+    }
+
+    // Chunk i with its length prefix, or null if it's not there
+    private static byte[] payload(FileChannel in, ByteBuffer header, long size, int i) throws IOException {
+        if(header == null) return null;
+        long offset = (long) (header.getInt(i * 4) >>> 8) * SECTOR;
+        if(offset < HEADER || offset + 4 > size) return null;
+        ByteBuffer prefix = ByteBuffer.allocate(4);
+        if(!readFully(in, prefix, offset)) return null;
+        int length = prefix.getInt(0);
+        if(length <= 0 || offset + 4 + length > size) return null;
+
+        ByteBuffer payload = ByteBuffer.allocate(length + 4);
+        if(!readFully(in, payload, offset)) return null;
+        return payload.array();
+    }
+
+    // False if the file ends first
+    private static boolean readFully(FileChannel in, ByteBuffer buf, long pos) throws IOException {
+        while(buf.hasRemaining()) {
+            if(in.read(buf, pos + buf.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf, long pos) throws IOException {
+        while(buf.hasRemaining())
+            out.write(buf, pos + buf.position());
+    }
+
+    // The first size bytes of the file as they are
+    private static void copy(FileChannel in, long size, OutputStream out) throws IOException {
+        byte[] bytes = new byte[64 * 1024];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        for(long pos = 0; pos < size; ) {
+            buf.clear();
+            buf.limit((int) Math.min(bytes.length, size - pos));
+            int len = in.read(buf, pos);
+            if(len < 0) break; // Got shorter
+            out.write(bytes, 0, len);
+            pos += len;
+        }
+    }
+
+    // Chunks of every region file in a backup
+    public static class Manifest {
+        private Map<String, RegionState> regions = new HashMap<>();
+
+        public int getRegionCount() {
+            return regions.size();
+        }
+
+        /*
+         * Chunk timestamps of every region file in a folder, only reading their headers
+         * Without CRCs it can't be the base of a delta backup
+         */
+        public static Manifest readHeaders(Path folder) throws IOException {
+            Manifest manifest = new Manifest();
+            if(!Files.isDirectory(folder)) return manifest;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if(!attrs.isRegularFile() || !isRegionFile(file.getFileName().toString()))
+                        return FileVisitResult.CONTINUE;
+
+                    header.clear();
+                    try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                        while(header.hasRemaining() && in.read(header) >= 0);
+                    }
+                    if(header.position() < HEADER) return FileVisitResult.CONTINUE; // Just created
+
+                    RegionState state = new RegionState();
+                    for(int i = 0; i < CHUNKS; i++) {
+                        if(header.getInt(i * 4) == 0) continue;
+                        state.timestamps[i] = header.getInt(SECTOR + i * 4);
+                        state.crcs[i] = 0; // There, but not known
+                    }
+                    String name = folder.relativize(file).toString().replace(File.separatorChar, '/');
+                    manifest.regions.put(name, state);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                    if(e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                    throw e;
+                }
+            });
+            return manifest;
+        }
+
+        // Chunks added, removed or saved again since the other manifest, only going by their timestamps
+        public int changedChunks(Manifest since) {
+            int changed = 0;
+            Set<String> names = new HashSet<>(regions.keySet());
+            names.addAll(since.regions.keySet());
+            for(String name : names) {
+                RegionState state = regions.get(name);
+                RegionState old = since.regions.get(name);
+                for(int i = 0; i < CHUNKS; i++) {
+                    boolean there = state != null && state.crcs[i] != -1;
+                    boolean wasThere = old != null && old.crcs[i] != -1;
+                    if(there != wasThere || (there && state.timestamps[i] != old.timestamps[i]))
+                        changed++;
+                }
+            }
+            return changed;
+        }
+
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(new GZIPOutputStream(out));
+            data.writeInt(MANIFEST_MAGIC);
+            data.writeInt(regions.size());
+            for(Map.Entry<String, RegionState> region : regions.entrySet()) {
+                data.writeUTF(region.getKey());
+                RegionState state = region.getValue();
+                for(int i = 0; i < CHUNKS; i++) {
+                    data.writeInt(state.timestamps[i]);
+                    data.writeLong(state.crcs[i]);
+                }
+            }
+            data.close();
+        }
+
+        public static Manifest read(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+            if(data.readInt() != MANIFEST_MAGIC)
+                throw new IOException("Unknown manifest format");
+
+            Manifest manifest = new Manifest();
+            int count = data.readInt();
+            for(int r = 0; r < count; r++) {
+                String name = data.readUTF();
+                RegionState state = new RegionState();
+                for(int i = 0; i < CHUNKS; i++) {
+                    state.timestamps[i] = data.readInt();
+                    state.crcs[i] = data.readLong();
+                }
+                manifest.regions.put(name, state);
+            }
+            return manifest;
+        }
+    }
+
+    private static class RegionState {
+        int[] timestamps = new int[CHUNKS];
+        long[] crcs = new long[CHUNKS]; // -1 if the chunk isn't there
+
+        RegionState() {
+            Arrays.fill(crcs, -1);
+        }
+    }
+}
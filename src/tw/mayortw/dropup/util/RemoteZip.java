@@ -0,0 +1,286 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/*
+ * Reads single entries of a zip in storage with ranged downloads
+ * Entries are listed from the sidecar index if there is one, otherwise the
+ * central directory is found from the end of the file. Either way listing
+ * takes one or two small downloads and each entry takes one more
+ */
+public class RemoteZip {
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD64_SIG = 0x06064b50;
+    private static final int EOCD64_LOCATOR_SIG = 0x07064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int EOCD64_LOCATOR_SIZE = 20;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT = 0xFFFF;
+    // Extra bytes downloaded after the local header in case its extra field is bigger
+    private static final int LOCAL_SLACK = 1024;
+
+    private StorageBackend storage;
+    private String path;
+    private long size;
+    private Map<String, Entry> entries;
+
+    // size is the size of the whole zip file
+    public RemoteZip(StorageBackend storage, String path, long size) {
+        this.storage = storage;
+        this.path = path;
+        this.size = size;
+    }
+
+    // Entries in the order they are in the zip. Names always use '/'
+    public synchronized List<Entry> getEntries() throws StorageBackend.StorageException, IOException {
+        if(entries == null)
+            entries = readEntries();
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    // Returns null if there's no such entry
+    public Entry getEntry(String name) throws StorageBackend.StorageException, IOException {
+        getEntries();
+        return entries.get(name);
+    }
+
+    // True if the zip has the folder or anything in it. folder ends with '/'
+    public boolean hasFolder(String folder) throws StorageBackend.StorageException, IOException {
+        getEntries();
+        for(String name : entries.keySet()) {
+            if(name.startsWith(folder))
+                return true;
+        }
+        return false;
+    }
+
+    // Uncompressed content of the entry. The caller closes it
+    public InputStream open(Entry entry) throws StorageBackend.StorageException, IOException {
+        long length = Math.min(size - entry.offset, LOC_SIZE + entry.headerGuess + entry.compressedSize + LOCAL_SLACK);
+        InputStream in = storage.download(path, entry.offset, length);
+
+        try {
+            DataInputStream data = new DataInputStream(in);
+            byte[] header = new byte[LOC_SIZE];
+            data.readFully(header);
+            ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if(buf.getInt(0) != LOC_SIG)
+                throw new IOException("Bad local header of " + entry.name);
+
+            long skip = (buf.getShort(26) & 0xFFFF) + (buf.getShort(28) & 0xFFFF);
+            if(LOC_SIZE + skip + entry.compressedSize > length) {
+                // Header is bigger than we guessed, get the data by itself
+                in.close();
+                in = storage.download(path, entry.offset + LOC_SIZE + skip, entry.compressedSize);
+            } else {
+                data.readFully(new byte[(int) skip]);
+            }
+        } catch(IOException e) {
+            in.close();
+            throw e;
+        }
+
+        InputStream raw = new RangeInputStream(in, entry.compressedSize);
+        switch(entry.method) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(raw, inflater, 64 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            default:
+                raw.close();
+                throw new IOException("Unsupported compression method " + entry.method + " of " + entry.name);
+        }
+    }
+
+    // Write the entry to file, checking its CRC
+    public void extract(Entry entry, Path file) throws StorageBackend.StorageException, IOException {
+        Files.createDirectories(file.getParent());
+        CRC32 crc = new CRC32();
+        long written = 0;
+        try(InputStream in = new CheckedInputStream(open(entry), crc);
+                OutputStream out = Files.newOutputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int len;
+            while((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+                written += len;
+            }
+        }
+
+        if(written != entry.size || crc.getValue() != entry.crc)
+            throw new IOException("Zip entry " + entry.name + " is corrupted");
+    }
+
+    private Map<String, Entry> readEntries() throws StorageBackend.StorageException, IOException {
+        try(InputStream in = storage.download(ZipIndex.indexName(path))) {
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for(Entry entry : ZipIndex.read(in).getEntries())
+                entries.put(entry.name, entry);
+            return entries;
+        } catch(StorageBackend.StorageException | IOException e) {
+            // Older backups don't have an index
+        }
+        return readCentralDirectory();
+    }
+
+    private Map<String, Entry> readCentralDirectory() throws StorageBackend.StorageException, IOException {
+        // End of central directory is in the last 64k + 22 bytes
+        long tailStart = Math.max(0, size - EOCD_SIZE - MAX_COMMENT - EOCD64_LOCATOR_SIZE);
+        ByteBuffer tail = read(tailStart, (int) (size - tailStart));
+
+        int eocd = -1;
+        for(int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if(tail.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if(eocd < 0)
+            throw new IOException("Not a zip file: " + path);
+
+        long count = tail.getShort(eocd + 10) & 0xFFFF;
+        long cenSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cenOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+        // Zip64 has the real numbers in another record
+        int locator = eocd - EOCD64_LOCATOR_SIZE;
+        if(locator >= 0 && tail.getInt(locator) == EOCD64_LOCATOR_SIG) {
+            long eocd64Offset = tail.getLong(locator + 8);
+            ByteBuffer eocd64 = eocd64Offset >= tailStart
+                ? slice(tail, (int) (eocd64Offset - tailStart), 56)
+                : read(eocd64Offset, 56);
+            if(eocd64.getInt(0) != EOCD64_SIG)
+                throw new IOException("Bad zip64 end record: " + path);
+            count = eocd64.getLong(32);
+            cenSize = eocd64.getLong(40);
+            cenOffset = eocd64.getLong(48);
+        }
+
+        if(cenSize > Integer.MAX_VALUE)
+            throw new IOException("Central directory too big: " + path);
+
+        // Usually the central directory was in the tail already
+        ByteBuffer cen = cenOffset >= tailStart
+            ? slice(tail, (int) (cenOffset - tailStart), (int) cenSize)
+            : read(cenOffset, (int) cenSize);
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int pos = 0;
+        for(long i = 0; i < count; i++) {
+            if(cen.getInt(pos) != CEN_SIG)
+                throw new IOException("Bad central directory: " + path);
+
+            int method = cen.getShort(pos + 10) & 0xFFFF;
+            long crc = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+            long compressedSize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            long offset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLen];
+            ByteBuffer dup = cen.duplicate();
+            dup.position(pos + 46);
+            dup.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8).replace('\\', '/');
+
+            // Zip64 extra field has the values that didn't fit, in this order
+            int extra = pos + 46 + nameLen;
+            int extraEnd = extra + extraLen;
+            while(extra + 4 <= extraEnd) {
+                int id = cen.getShort(extra) & 0xFFFF;
+                int len = cen.getShort(extra + 2) & 0xFFFF;
+                if(id == 0x0001) {
+                    int field = extra + 4;
+                    if(uncompressedSize == 0xFFFFFFFFL) {
+                        uncompressedSize = cen.getLong(field);
+                        field += 8;
+                    }
+                    if(compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = cen.getLong(field);
+                        field += 8;
+                    }
+                    if(offset == 0xFFFFFFFFL)
+                        offset = cen.getLong(field);
+                }
+                extra += 4 + len;
+            }
+
+            entries.put(name, new Entry(name, method, crc, compressedSize, uncompressedSize, offset, nameLen + extraLen));
+            pos = extraEnd + commentLen;
+        }
+
+        return entries;
+    }
+
+    private ByteBuffer read(long offset, int length) throws StorageBackend.StorageException, IOException {
+        byte[] bytes = new byte[length];
+        try(InputStream in = storage.download(path, offset, length)) {
+            new DataInputStream(in).readFully(bytes);
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static class Entry {
+        public final String name;
+        public final int method;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long offset; // of the local header
+        final int headerGuess; // name and extra length in central directory
+
+        Entry(String name, int method, long crc, long compressedSize, long size, long offset, int headerGuess) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.headerGuess = headerGuess;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -15,13 +15,13 @@ import java.io.OutputStream;
 public class SplitOutputStream extends FilterOutputStream {
 
     private long written;
-    private int chunkSize;
+    private long chunkSize;
     private Callback chunkCb;
 
     // chunkSize is in kb
     public SplitOutputStream(OutputStream out, int chunkSize, Callback chunkCb) {
         super(out);
-        this.chunkSize = chunkSize * 1024;
+        this.chunkSize = chunkSize * 1024L;
         this.chunkCb = chunkCb;
     }
 
@@ -36,11 +36,28 @@ public class SplitOutputStream extends FilterOutputStream {
             out = chunkCb.next(written);
         }
 
-        super.write(b);
+        out.write(b);
         written++;
     }
 
+    // Writes as much as fits in the current chunk at once
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(written > 0 && written % chunkSize == 0) {
+                out.close();
+                out = chunkCb.next(written);
+            }
+
+            int n = (int) Math.min(len, chunkSize - written % chunkSize);
+            out.write(b, off, n);
+            written += n;
+            off += n;
+            len -= n;
+        }
+    }
+
     public static interface Callback {
-        public OutputStream next(long offset);
+        public OutputStream next(long offset) throws IOException;
     }
 }
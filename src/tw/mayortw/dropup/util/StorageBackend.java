@@ -0,0 +1,74 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Somewhere to store backups
+ * Paths are separated by '/', like "/backup/<world uid>/<backup name>"
+ */
+public interface StorageBackend {
+
+    // Upload stream as path/name, creating folders if needed. Returns filename
+    public default String upload(String path, String name, InputStream stream) throws StorageException {
+        return upload(path, name, stream, Collections.emptyMap());
+    }
+
+    // Upload with small key-value properties stored along with the file, like checksums
+    public default String upload(String path, String name, InputStream stream, Map<String, String> properties) throws StorageException {
+        return upload(path, name, stream, -1, properties);
+    }
+
+    // length is the number of bytes in stream, or -1 if unknown
+    public String upload(String path, String name, InputStream stream, long length, Map<String, String> properties) throws StorageException;
+
+    public InputStream download(String path) throws StorageException, IOException;
+
+    /*
+     * Download part of a file
+     * length = -1 means until the end of the file
+     */
+    public InputStream download(String path, long offset, long length) throws StorageException, IOException;
+
+    // Returns empty list if the folder doesn't exist
+    public List<String> listFileNames(String path) throws StorageException;
+
+    // Deleting a folder deletes everything in it
+    public void deleteFile(String path) throws StorageException;
+
+    // Returns null if the file doesn't exist
+    public FileInfo getFileInfo(String path) throws StorageException;
+
+    public static class FileInfo {
+        public final String name;
+        public final long size; // -1 if unknown
+        public final long modifiedTime; // millis since epoch
+        public final boolean directory;
+        public final Map<String, String> properties;
+
+        public FileInfo(String name, long size, long modifiedTime, boolean directory, Map<String, String> properties) {
+            this.name = name;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.directory = directory;
+            this.properties = properties;
+        }
+    }
+
+    public static class StorageException extends Exception {
+        static private final long serialVersionUID = 0;
+
+        public StorageException(String msg) {
+            super(msg);
+        }
+        public StorageException(Exception e) {
+            super(e);
+        }
+    }
+}
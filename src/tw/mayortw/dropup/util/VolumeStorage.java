@@ -0,0 +1,207 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Backups too big for one file are stored as a folder of volumes
+ *   <name>/001, <name>/002, ...  the parts in order
+ *   <name>/volumes               part sizes and properties of the whole backup
+ * The volumes file is written last, so a folder without it isn't finished
+ *
+ * Wraps another storage so a volume folder reads like one file, and
+ * passes everything else through
+ */
+public class VolumeStorage implements StorageBackend {
+
+    public static final String MANIFEST = "volumes";
+
+    private StorageBackend storage;
+    // Manifests of volume folders already read, they don't change once written
+    private Map<String, Volumes> known = new ConcurrentHashMap<>();
+
+    public VolumeStorage(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    // Name of the i-th part, starting from 0
+    public static String partName(int i) {
+        return String.format("%03d", i + 1);
+    }
+
+    // Call after every part is uploaded to path/name
+    public static void writeManifest(StorageBackend storage, String path, String name,
+            List<Long> sizes, Map<String, String> properties) throws StorageException {
+        Properties manifest = new Properties();
+        manifest.setProperty("parts", String.valueOf(sizes.size()));
+        for(int i = 0; i < sizes.size(); i++)
+            manifest.setProperty("part." + partName(i), String.valueOf(sizes.get(i)));
+        for(Map.Entry<String, String> prop : properties.entrySet())
+            manifest.setProperty("property." + prop.getKey(), prop.getValue());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            manifest.store(out, null);
+        } catch(IOException e) {
+            throw new StorageException(e);
+        }
+        byte[] bytes = out.toByteArray();
+        storage.upload(path + "/" + name, MANIFEST, new ByteArrayInputStream(bytes), bytes.length, Collections.emptyMap());
+    }
+
+    @Override
+    public String upload(String path, String name, InputStream stream, long length, Map<String, String> properties) throws StorageException {
+        return storage.upload(path, name, stream, length, properties);
+    }
+
+    @Override
+    public InputStream download(String path) throws StorageException, IOException {
+        return download(path, 0, -1);
+    }
+
+    @Override
+    public InputStream download(String path, long offset, long length) throws StorageException, IOException {
+        Volumes volumes = known.get(path);
+        if(volumes == null) {
+            // Most backups are single files, so only look for volumes when that fails
+            try {
+                return storage.download(path, offset, length);
+            } catch(StorageException e) {
+                volumes = readVolumes(path);
+                if(volumes == null) throw e;
+            }
+        }
+
+        InputStream in = new VolumeInputStream(path, volumes, offset);
+        return length < 0 ? in : new RangeInputStream(in, length);
+    }
+
+    @Override
+    public List<String> listFileNames(String path) throws StorageException {
+        return storage.listFileNames(path);
+    }
+
+    @Override
+    public void deleteFile(String path) throws StorageException {
+        known.remove(path);
+        storage.deleteFile(path);
+    }
+
+    @Override
+    public FileInfo getFileInfo(String path) throws StorageException {
+        FileInfo info = storage.getFileInfo(path);
+        if(info == null || !info.directory) return info;
+
+        Volumes volumes = readVolumes(path);
+        if(volumes == null) return info;
+        return new FileInfo(info.name, volumes.size, info.modifiedTime, false, volumes.properties);
+    }
+
+    // Returns null if path isn't a finished volume folder
+    private Volumes readVolumes(String path) throws StorageException {
+        Volumes volumes = known.get(path);
+        if(volumes != null) return volumes;
+
+        Properties manifest = new Properties();
+        try(InputStream in = storage.download(path + "/" + MANIFEST)) {
+            manifest.load(in);
+        } catch(StorageException | IOException e) {
+            return null;
+        }
+
+        try {
+            volumes = new Volumes();
+            int parts = Integer.parseInt(manifest.getProperty("parts"));
+            for(int i = 0; i < parts; i++) {
+                long size = Long.parseLong(manifest.getProperty("part." + partName(i)));
+                volumes.sizes.add(size);
+                volumes.size += size;
+            }
+        } catch(NumberFormatException | NullPointerException e) {
+            throw new StorageException("Bad volume manifest: " + path);
+        }
+        for(String key : manifest.stringPropertyNames()) {
+            if(key.startsWith("property."))
+                volumes.properties.put(key.substring("property.".length()), manifest.getProperty(key));
+        }
+
+        known.put(path, volumes);
+        return volumes;
+    }
+
+    private static class Volumes {
+        List<Long> sizes = new ArrayList<>();
+        long size = 0;
+        Map<String, String> properties = new HashMap<>();
+    }
+
+    // Downloads the parts one after another, starting at offset
+    private class VolumeInputStream extends InputStream {
+        private String path;
+        private Volumes volumes;
+        private int part = 0;
+        private long skip; // into the current part
+        private InputStream in;
+
+        VolumeInputStream(String path, Volumes volumes, long offset) {
+            this.path = path;
+            this.volumes = volumes;
+            while(part < volumes.sizes.size() && offset >= volumes.sizes.get(part)) {
+                offset -= volumes.sizes.get(part);
+                part++;
+            }
+            this.skip = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int len;
+            while((len = read(b, 0, 1)) == 0);
+            return len < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            while(true) {
+                if(in == null) {
+                    if(part >= volumes.sizes.size()) return -1;
+                    try {
+                        in = storage.download(path + "/" + partName(part), skip, -1);
+                    } catch(StorageException e) {
+                        throw new IOException("Cannot download part " + partName(part) + " of " + path, e);
+                    }
+                    skip = 0;
+                }
+
+                int read = in.read(b, off, len);
+                if(read >= 0) return read;
+                in.close();
+                in = null;
+                part++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(in != null) {
+                in.close();
+                in = null;
+            }
+            part = volumes.sizes.size();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package tw.mayortw.dropup.util;
+/*
+ * Written by R26
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+
+/*
+ * Where each entry is in a zip, recorded while the zip is written
+ * Uploaded next to the backup as <backup>.zip.idx so the entries can be
+ * listed and fetched without reading the zip's central directory
+ */
+public class ZipIndex {
+
+    public static final String SUFFIX = ".idx";
+    private static final String HEADER = "dropup-zip-index 1";
+
+    private List<RemoteZip.Entry> entries = new ArrayList<>();
+
+    public static String indexName(String zipName) {
+        return zipName + SUFFIX;
+    }
+
+    // Call after the entry is closed so its sizes are known
+    public void add(ZipEntry entry, long offset) {
+        String name = entry.getName().replace('\\', '/');
+        entries.add(new RemoteZip.Entry(name, entry.getMethod(), entry.getCrc(),
+                    entry.getCompressedSize(), entry.getSize(), offset,
+                    name.getBytes(StandardCharsets.UTF_8).length));
+    }
+
+    public List<RemoteZip.Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    // Gzipped, one entry per line
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8);
+        writer.write(HEADER + "\n");
+        for(RemoteZip.Entry entry : entries) {
+            writer.write(String.format("%d\t%d\t%d\t%d\t%d\t%d\t%s\n",
+                        entry.offset, entry.method, entry.crc,
+                        entry.compressedSize, entry.size, entry.headerGuess, entry.name));
+        }
+        writer.close();
+    }
+
+    public static ZipIndex read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), StandardCharsets.UTF_8));
+        if(!HEADER.equals(reader.readLine()))
+            throw new IOException("Unknown zip index format");
+
+        ZipIndex index = new ZipIndex();
+        String line;
+        try {
+            while((line = reader.readLine()) != null) {
+                if(line.isEmpty()) continue;
+                String[] parts = line.split("\t", 7);
+                if(parts.length != 7)
+                    throw new IOException("Bad zip index line: " + line);
+                index.entries.add(new RemoteZip.Entry(parts[6], Integer.parseInt(parts[1]), Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3]), Long.parseLong(parts[4]), Long.parseLong(parts[0]),
+                            Integer.parseInt(parts[5])));
+            }
+        } catch(NumberFormatException e) {
+            throw new IOException("Bad zip index: " + e.getMessage());
+        }
+        return index;
+    }
+}